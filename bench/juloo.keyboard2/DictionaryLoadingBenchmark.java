@@ -0,0 +1,142 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/** Compare loading a dictionary with [Utils.read_all_bytes] and with
+    [Utils.read_file], which is used by [Dictionaries]. A file of the size of
+    the largest dictionary listed in [res/values/dictionaries.xml] is loaded
+    several times with both and the median duration and the bytes allocated
+    are printed. The allocations are only measured on JVMs that support it.
+
+    Run with: ./gradlew benchmarkDictionaryLoading */
+public final class DictionaryLoadingBenchmark
+{
+  static final int ROUNDS = 15;
+
+  public static void main(String[] args) throws Exception
+  {
+    String[] largest = largest_dictionary();
+    int size = Integer.parseInt(largest[1]);
+    System.out.println("Largest dictionary: " + largest[0] + ", "
+        + size + " bytes");
+    File f = temp_file(size);
+    try
+    {
+      report("read_all_bytes", measure(f, size, false));
+      report("read_file", measure(f, size, true));
+    }
+    finally
+    {
+      f.delete();
+    }
+  }
+
+  /** Locale and size of the largest dictionary. */
+  static String[] largest_dictionary() throws Exception
+  {
+    Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+      .parse(new File("res/values/dictionaries.xml")).getDocumentElement();
+    NodeList locales = array_items(root, "string-array", "dictionaries_locale");
+    NodeList sizes = array_items(root, "integer-array", "dictionaries_size");
+    int best = 0;
+    for (int i = 1; i < sizes.getLength(); i++)
+      if (item_int(sizes, i) > item_int(sizes, best))
+        best = i;
+    return new String[]{
+      locales.item(best).getTextContent(), sizes.item(best).getTextContent()
+    };
+  }
+
+  static NodeList array_items(Element root, String tag, String name)
+  {
+    NodeList arrays = root.getElementsByTagName(tag);
+    for (int i = 0; i < arrays.getLength(); i++)
+    {
+      Element a = (Element)arrays.item(i);
+      if (a.getAttribute("name").equals(name))
+        return a.getElementsByTagName("item");
+    }
+    throw new RuntimeException("Missing array " + name);
+  }
+
+  static int item_int(NodeList items, int i)
+  {
+    return Integer.parseInt(items.item(i).getTextContent().trim());
+  }
+
+  static File temp_file(int size) throws Exception
+  {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    File f = File.createTempFile("DictionaryLoadingBenchmark", ".dict");
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(data);
+    out.close();
+    return f;
+  }
+
+  /** Median duration in nanoseconds and median bytes allocated, [-1] if the
+      allocations can't be measured. The first rounds are a warmup. */
+  static long[] measure(File f, int size, boolean presized) throws Exception
+  {
+    long[] durations = new long[ROUNDS];
+    long[] allocated = new long[ROUNDS];
+    for (int warmup = 0; warmup < 3; warmup++)
+      load(f, presized);
+    for (int i = 0; i < ROUNDS; i++)
+    {
+      long alloc = allocated_bytes();
+      long t0 = System.nanoTime();
+      byte[] data = load(f, presized);
+      durations[i] = System.nanoTime() - t0;
+      allocated[i] = (alloc < 0) ? -1 : allocated_bytes() - alloc;
+      if (data.length != size)
+        throw new RuntimeException("Read " + data.length + " bytes");
+    }
+    return new long[]{ median(durations), median(allocated) };
+  }
+
+  static byte[] load(File f, boolean presized) throws Exception
+  {
+    if (presized)
+      return Utils.read_file(f);
+    FileInputStream inp = new FileInputStream(f);
+    try { return Utils.read_all_bytes(inp); }
+    finally { inp.close(); }
+  }
+
+  /** Bytes allocated by the current thread or [-1]. */
+  static long allocated_bytes()
+  {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean)mx;
+    if (!smx.isThreadAllocatedMemorySupported())
+      return -1;
+    return smx.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static long median(long[] values)
+  {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  static void report(String name, long[] r)
+  {
+    String alloc = (r[1] < 0) ? "unknown" : (r[1] / 1024 + "KiB");
+    System.out.println(name + ": " + r[0] / 1000 + "us, " + alloc
+        + " allocated");
+  }
+}
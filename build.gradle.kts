@@ -10,6 +10,8 @@ dependencies {
   implementation("androidx.window:window-java:1.4.0")
   implementation("androidx.core:core:1.16.0") // Version 1.17.0 available with sdk 36
   testImplementation("junit:junit:4.13.2")
+  // The XML parser used by Android, layouts are parsed in unit tests.
+  testImplementation("net.sf.kxml:kxml2:2.3.0")
 }
 
 android {
@@ -29,11 +31,13 @@ android {
       manifest.srcFile("AndroidManifest.xml")
       java.srcDirs("srcs/juloo.keyboard2", "vendor/cdict/java/juloo.cdict")
       res.srcDirs("res", "build/generated-resources")
-      assets.srcDirs("assets")
+      assets.srcDirs("assets", "build/generated-assets")
     }
 
     named("test") {
       java.srcDirs("test")
+      // [ComposeKey] reads [compose.bin] from the classpath in unit tests.
+      resources.srcDirs("assets")
     }
   }
 
@@ -89,6 +93,11 @@ android {
     }
   }
 
+  androidResources {
+    // Allows BinaryLayouts to memory-map layouts.bin.
+    noCompress += listOf("bin")
+  }
+
   compileOptions {
     sourceCompatibility = JavaVersion.VERSION_1_8
     targetCompatibility = JavaVersion.VERSION_1_8
@@ -141,6 +150,17 @@ val genMethodXml by tasks.registering(Exec::class) {
   commandLine("python", "gen_method_xml.py")
 }
 
+val compileLayouts by tasks.registering(Exec::class) {
+  val out = projectDir.resolve("build/generated-assets/layouts.bin")
+  inputs.dir(projectDir.resolve("srcs/layouts"))
+  inputs.dir(projectDir.resolve("res/xml"))
+  inputs.file(projectDir.resolve("compile_layouts.py"))
+  outputs.file(out)
+  doFirst { println("\nGenerating $out") }
+  workingDir = projectDir
+  commandLine("python", "compile_layouts.py", out.absolutePath)
+}
+
 val checkKeyboardLayouts by tasks.registering(Exec::class) {
   inputs.dir(projectDir.resolve("srcs/layouts"))
   inputs.file(projectDir.resolve("srcs/juloo.keyboard2/KeyValue.java"))
@@ -153,19 +173,42 @@ val checkKeyboardLayouts by tasks.registering(Exec::class) {
 val compileComposeSequences by tasks.registering(Exec::class) {
   val `in` = projectDir.resolve("srcs/compose")
   val out = projectDir.resolve("srcs/juloo.keyboard2/ComposeKeyData.java")
+  val out_bin = projectDir.resolve("assets/compose.bin")
   inputs.dir(`in`)
   outputs.file(out)
-  doFirst { println("\nGenerating $out") }
+  outputs.file(out_bin)
+  doFirst { println("\nGenerating $out and $out_bin") }
   val sequences = `in`.listFiles { it: File ->
     !it.name.endsWith(".py") && !it.name.endsWith(".md")
   }!!.map { it.absolutePath }.toTypedArray()
   workingDir = projectDir
-  commandLine("python", `in`.resolve("compile.py").absolutePath, *sequences)
+  commandLine("python", `in`.resolve("compile.py").absolutePath,
+    out_bin.absolutePath, *sequences)
   doFirst { standardOutput = FileOutputStream(out) }
 }
 
 tasks.withType(Test::class).configureEach {
-  dependsOn(genLayoutsList, checkKeyboardLayouts, compileComposeSequences, genMethodXml)
+  dependsOn(genLayoutsList, checkKeyboardLayouts, compileComposeSequences, genMethodXml,
+    compileLayouts)
+}
+
+// Benchmarks in [bench] are not part of the tests. They run on a desktop JVM
+// against the debug classes, only code that doesn't call Android can run.
+val compileBenchmarks by tasks.registering(JavaCompile::class) {
+  val debugJavac = tasks.named<JavaCompile>("compileDebugJavaWithJavac")
+  source(fileTree("bench"))
+  classpath = files(debugJavac.flatMap { it.destinationDirectory },
+    androidComponents.sdkComponents.bootClasspath)
+  destinationDirectory.set(layout.buildDirectory.dir("benchmarks"))
+  sourceCompatibility = "1.8"
+  targetCompatibility = "1.8"
+}
+
+val benchmarkDictionaryLoading by tasks.registering(JavaExec::class) {
+  classpath = files(compileBenchmarks.flatMap { it.destinationDirectory },
+    compileBenchmarks.map { it.classpath })
+  mainClass.set("juloo.keyboard2.DictionaryLoadingBenchmark")
+  workingDir = projectDir
 }
 
 val initDebugKeystore by tasks.registering(Exec::class) {
@@ -188,7 +231,8 @@ val copyLayoutDefinitions by tasks.registering(Copy::class) {
 }
 
 tasks.named("preBuild") {
-  dependsOn(initDebugKeystore, copyRawQwertyUS, copyLayoutDefinitions)
+  dependsOn(initDebugKeystore, copyRawQwertyUS, copyLayoutDefinitions,
+    compileLayouts)
   // 'mustRunAfter' defines ordering between tasks (which is required by
   // Gradle) but doesn't create a dependency. These rules update files that are
   // checked in the repository that don't need to be updated during regular
@@ -0,0 +1,195 @@
+#!/usr/bin/env python
+
+# Compiles the layouts in srcs/layouts and the keyboards and rows in res/xml
+# into a binary file, loaded by BinaryLayouts.java. This avoids parsing XML
+# when the keyboard starts.
+#
+# Usage: compile_layouts.py <output file>
+#
+# The format is described in BinaryLayouts.java. Key definitions are not
+# parsed, they are stored in a table of strings shared by every layouts.
+
+import sys, os, glob, struct
+import xml.etree.ElementTree as XML
+
+MAGIC = 0x554B4C31 # "UKL1"
+VERSION = 1
+NONE = 0xFFFF
+
+TYPE_KEYBOARD = 0
+TYPE_ROW = 1
+
+# Same order as KeyboardData.Key.keys, with synonyms.
+KEY_ATTRS = [ ("key0", "c"), ("key1", "nw"), ("key2", "ne"), ("key3", "sw"),
+        ("key4", "se"), ("key5", "w"), ("key6", "e"), ("key7", "n"),
+        ("key8", "s") ]
+
+F_LOC = 1
+
+# Same order as KeyboardData.Key.Role.
+ROLES = { "normal": 0, "action": 1, "space_bar": 2, "suggestion": 3 }
+
+# Same order as Modmap.M.
+MODMAP_TAGS = { "shift": 0, "fn": 1, "ctrl": 2 }
+
+class Error(Exception):
+    pass
+
+class Strings:
+    def __init__(self):
+        self.index = {}
+        self.strings = []
+
+    def intern(self, s):
+        if s is None:
+            return NONE
+        i = self.index.get(s)
+        if i is None:
+            i = len(self.strings)
+            if i >= NONE:
+                raise Error("Too many strings")
+            self.index[s] = i
+            self.strings.append(s)
+        return i
+
+def u8(v): return struct.pack(">B", v)
+def u16(v): return struct.pack(">H", v)
+def u32(v): return struct.pack(">I", v)
+def f32(v): return struct.pack(">f", v)
+
+def attr_float(elem, attr, default):
+    v = elem.get(attr)
+    return default if v is None else float(v)
+
+def attr_bool(elem, attr, default):
+    v = elem.get(attr)
+    return default if v is None else (v == "true")
+
+# See KeyboardData.Key.parse.
+def compile_key(strings, key):
+    if key.tag != "key":
+        raise Error("Expecting tag <key>, got <%s>" % key.tag)
+    mask = 0
+    flags = 0
+    values = []
+    for i, (syn1, syn2) in enumerate(KEY_ATTRS):
+        v1, v2 = key.get(syn1), key.get(syn2)
+        if v1 is not None and v2 is not None:
+            raise Error("'%s' and '%s' are synonyms and cannot be passed at the same time." % (syn1, syn2))
+        v = v2 if v1 is None else v1
+        if v is None:
+            continue
+        if v.startswith("loc "):
+            flags |= F_LOC << i
+            v = v[len("loc "):]
+        mask |= 1 << i
+        values.append(strings.intern(v))
+    anticircle = key.get("anticircle")
+    if anticircle is not None:
+        mask |= 1 << 9
+        values.append(strings.intern(anticircle))
+    indication = key.get("indication")
+    if indication is not None:
+        mask |= 1 << 10
+        values.append(strings.intern(indication))
+    role = key.get("role", "normal")
+    if role not in ROLES:
+        raise Error("Unknown role '%s'" % role)
+    out = u16(mask) + u16(flags)
+    out += b"".join(u16(v) for v in values)
+    out += f32(attr_float(key, "width", 1.0)) + f32(attr_float(key, "shift", 0.0))
+    out += u8(ROLES[role])
+    return out
+
+# See KeyboardData.Row.parse.
+def compile_row(strings, row):
+    keys = list(row)
+    out = f32(attr_float(row, "height", 1.0)) + f32(attr_float(row, "shift", 0.0))
+    out += f32(attr_float(row, "scale", 0.0)) + u16(len(keys))
+    return out + b"".join(compile_key(strings, k) for k in keys)
+
+# See KeyboardData.parse_modmap.
+def compile_modmap(strings, modmap):
+    out = u16(len(modmap))
+    for m in modmap:
+        if m.tag not in MODMAP_TAGS:
+            raise Error("Expecting tag <shift> or <fn>, got <%s>" % m.tag)
+        a, b = m.get("a"), m.get("b")
+        if a is None or b is None:
+            raise Error("Missing attribute 'a' or 'b' in <%s>" % m.tag)
+        out += u8(MODMAP_TAGS[m.tag]) + u16(strings.intern(a)) + u16(strings.intern(b))
+    return out
+
+# See KeyboardData.parse_keyboard.
+def compile_keyboard(strings, kb):
+    script = kb.get("script")
+    if script == "":
+        raise Error("'script' attribute cannot be empty")
+    numpad_script = kb.get("numpad_script")
+    if numpad_script == "":
+        raise Error("'numpad_script' attribute cannot be empty")
+    rows = []
+    modmap = None
+    for child in kb:
+        if child.tag == "row":
+            rows.append(child)
+        elif child.tag == "modmap":
+            if modmap is not None:
+                raise Error("Multiple '<modmap>' are not allowed")
+            modmap = child
+        else:
+            raise Error("Expecting tag <row>, got <%s>" % child.tag)
+    flags = 0
+    if attr_bool(kb, "bottom_row", True): flags |= 1
+    if attr_bool(kb, "embedded_number_row", False): flags |= 2
+    if attr_bool(kb, "locale_extra_keys", True): flags |= 4
+    if modmap is not None: flags |= 8
+    out = u8(flags) + f32(attr_float(kb, "width", 0.0))
+    out += u16(strings.intern(script)) + u16(strings.intern(numpad_script))
+    out += u16(strings.intern(kb.get("name"))) + u16(len(rows))
+    out += b"".join(compile_row(strings, r) for r in rows)
+    out += compile_modmap(strings, [] if modmap is None else list(modmap))
+    return out
+
+# Returns [(id, type, bytes)] for every layouts and rows in [files]. [id] is
+# an index in [strings].
+def compile_files(strings, files):
+    for fname in files:
+        layout_id, _ = os.path.splitext(os.path.basename(fname))
+        root = XML.parse(fname).getroot()
+        try:
+            if root.tag == "keyboard":
+                data = compile_keyboard(strings, root)
+                yield (strings.intern(layout_id), TYPE_KEYBOARD, data)
+            elif root.tag == "row":
+                data = compile_row(strings, root)
+                yield (strings.intern(layout_id), TYPE_ROW, data)
+        except (Error, ValueError) as e:
+            raise Error("%s: %s" % (fname, e))
+
+def compile_layouts(files):
+    strings = Strings()
+    entries = list(compile_files(strings, files))
+    header = u32(MAGIC) + u16(VERSION) + u16(len(strings.strings))
+    for s in strings.strings:
+        b = s.encode("utf-8")
+        header += u16(len(b)) + b
+    header += u16(len(entries))
+    # Each entry is: id, type, offset.
+    offset = len(header) + len(entries) * (2 + 1 + 4)
+    index = b""
+    body = b""
+    for (layout_id, typ, data) in entries:
+        index += u16(layout_id) + u8(typ) + u32(offset + len(body))
+        body += data
+    return header + index + body
+
+files = sorted(glob.glob("srcs/layouts/*.xml")) + sorted(glob.glob("res/xml/*.xml"))
+try:
+    data = compile_layouts(files)
+except Error as e:
+    sys.exit("Error: %s" % e)
+out = sys.argv[1]
+os.makedirs(os.path.dirname(out) or ".", exist_ok=True)
+with open(out, "wb") as f:
+    f.write(data)
@@ -1,12 +1,14 @@
-import textwrap, sys, re, string, json, os, string
+import textwrap, sys, re, string, json, os, string, struct
 from array import array
 
 # Compile compose sequences from Xorg's format or from JSON files into an
 # efficient state machine.
 # See [ComposeKey.java] for the interpreter.
 #
-# Takes input files as arguments and generate a Java file.
-# The initial state for each input is generated as a constant named after the
+# Usage: compile.py <binary output file> <input files...>
+# The state machine is written into the binary file, which is loaded by
+# [ComposeKey.java]. A Java file is printed on the standard output. The
+# initial state for each input is generated as a constant named after the
 # input file.
 
 # Parse symbol names from keysymdef.h. Many compose sequences in
@@ -185,8 +187,10 @@ def add_sequences_to_trie(seqs, trie):
 def make_automata(tries):
     previous_leafs = {} # Deduplicate leafs
     states = []
+    nodes = [] # Index of every intermediate states
     def add_tree(t):
         this_node_index = len(states)
+        nodes.append(this_node_index)
         # Index and size of the new node
         i = len(states)
         s = len(t.keys())
@@ -228,7 +232,60 @@ def make_automata(tries):
             return add_tree(n)
     states.append((1, 1)) # Add an empty state at the beginning.
     entry_states = { n: add_tree(root) for n, root in tries.items() }
-    return entry_states, states
+    return entry_states, states, nodes
+
+# States with at least this many transitions get a hash table.
+DENSE_MIN_TRANSITIONS = 32
+# Header of the states that have a hash table, the low bits are the index of
+# the table in [dense_tables].
+DENSE_HEADER = 0x8000
+# Multipliers tried for each tables, the one with the fewest probes is kept.
+HASH_MULTIPLIERS = [ (0x9E3779B1 + i * 0x01000193 * 2) & 0xFFFFFFFF
+        for i in range(32) ]
+
+# Must be the same as in [ComposeKey.find_edge].
+def hash_char(c, mult, bits):
+    return ((c * mult) & 0xFFFFFFFF) >> (32 - bits)
+
+# Build an open addressing hash table with linear probing for the
+# intermediate states that have many transitions. The tables are stored
+# one after the other in the [dense] array, each entry is the index of a
+# transition in [states] or 0 for an empty slot. The header of the states
+# is replaced by [DENSE_HEADER] plus the index of the table. Tables are
+# at most half full.
+def make_dense_tables(states, nodes):
+    dense = []
+    tables = []
+    def fill_table(trans, mult, bits):
+        size = 1 << bits
+        table = [0] * size
+        probes = 0
+        for i in trans:
+            h = hash_char(ord(states[i][0]), mult, bits)
+            probes += 1
+            while table[h] != 0:
+                h = (h + 1) & (size - 1)
+                probes += 1
+            table[h] = i
+        return probes, table
+    for node in nodes:
+        n = states[node][1] - 1
+        if n < DENSE_MIN_TRANSITIONS:
+            continue
+        trans = range(node + 1, node + 1 + n)
+        bits = (2 * n - 1).bit_length()
+        best = None
+        for mult in HASH_MULTIPLIERS:
+            probes, table = fill_table(trans, mult, bits)
+            if best is None or probes < best[0]:
+                best = (probes, mult, table)
+        _, mult, table = best
+        if DENSE_HEADER + len(tables) >= 0xFFFF:
+            raise Exception("Too many dense states")
+        states[node] = (chr(DENSE_HEADER + len(tables)), states[node][1])
+        tables.append((len(dense), mult, bits))
+        dense.extend(table)
+    return dense, tables
 
 # Debug
 def print_automata(automata):
@@ -264,67 +321,56 @@ def check_for_warnings(tries):
                 elif r != r_l:
                     warn(f"is not the same as {seq_to_str(seq_l)} = {r_l}{ll_warning}", seq=seq, result=r)
 
-def batched(ar, n):
-    i = 0
-    while i + n < len(ar):
-        yield ar[i:i+n]
-        i += n
-    if i < len(ar):
-        yield ar[i:]
-
-# Print the state machine compiled by make_automata into java code that can be
-# used by [ComposeKeyData.java].
+# Print the constants that go with the binary file into java code.
 def gen_java(entry_states, machine):
-    chars_map = {
-            # These characters cannot be used in unicode form as Java's parser
-            # unescape unicode sequences before parsing.
-            -1: "\\uFFFF",
-            "\"": "\\\"",
-            "\\": "\\\\",
-            "\n": "\\n",
-            "\r": "\\r",
-            ord("\""): "\\\"",
-            ord("\\"): "\\\\",
-            ord("\n"): "\\n",
-            ord("\r"): "\\r",
-            }
-    def char_repr(c):
-        if c in chars_map:
-            return chars_map[c]
-        if type(c) == int: # The edges array contains ints
-            return "\\u%04x" % c
-        if c in string.printable:
-            return c
-        return "\\u%04x" % ord(c)
-    def gen_array(array):
-        chars = list(map(char_repr, array))
-        return "\" +\n    \"".join(map(lambda b: "".join(b), batched(chars, 72)))
     def gen_entry_state(s):
         name, state = s
         return "  public static final int %s = %d;" % (name, state)
     print("""package juloo.keyboard2;
 
-/** This file is generated, see [srcs/compose/compile.py]. */
+/** This file is generated, see [srcs/compose/compile.py]. The state machine
+    is in [assets/compose.bin]. */
 
 public final class ComposeKeyData
 {
-  public static final char[] states =
-    ("%s").toCharArray();
-
-  public static final char[] edges =
-    ("%s").toCharArray();
+  /** Number of states in [assets/compose.bin], used to check that the two
+      files are in sync. */
+  static final int STATES_LENGTH = %d;
 
 %s
 }""" % (
-    # Break the edges array every few characters using string concatenation.
-    gen_array(map(lambda s: s[0], machine)),
-    gen_array(map(lambda s: s[1], machine)),
+    len(machine),
     "\n".join(map(gen_entry_state, entry_states.items())),
 ))
 
+BINARY_MAGIC = 0x554B4331 # "UKC1"
+BINARY_VERSION = 1
+
+# Write the state machine compiled by make_automata in the format read by
+# [ComposeKey.load]. The file is little-endian, which is the native order of
+# Android devices, as the arrays are read directly from the mapped file.
+def gen_binary(out_file, machine, dense, dense_tables):
+    def char_value(c):
+        return 0xFFFF if c == -1 else (c if type(c) == int else ord(c))
+    def u16_array(values):
+        a = array('H', values)
+        if sys.byteorder != "little":
+            a.byteswap()
+        return a.tobytes()
+    out = struct.pack("<IHHIII", BINARY_MAGIC, BINARY_VERSION, 0,
+            len(machine), len(dense), len(dense_tables))
+    for offset, mult, bits in dense_tables:
+        out += struct.pack("<IIi", offset, mult, bits)
+    out += u16_array(map(lambda s: char_value(s[0]), machine))
+    out += u16_array(map(lambda s: char_value(s[1]), machine))
+    out += u16_array(dense)
+    with open(out_file, "wb") as f:
+        f.write(out)
+
 total_sequences = 0
 tries = {} # Orderred dict
-for fname in sorted(sys.argv[1:]):
+binary_out = sys.argv[1]
+for fname in sorted(sys.argv[2:]):
     tname, _ = os.path.splitext(os.path.basename(fname))
     if os.path.isdir(fname):
         sequences = parse_sequences_dir(fname)
@@ -334,8 +380,11 @@ for fname in sorted(sys.argv[1:]):
     total_sequences += len(sequences)
 
 check_for_warnings(tries["compose"])
-entry_states, automata = make_automata(tries)
+entry_states, automata, nodes = make_automata(tries)
+dense, dense_tables = make_dense_tables(automata, nodes)
 gen_java(entry_states, automata)
+gen_binary(binary_out, automata, dense, dense_tables)
 
 print("Compiled %d sequences into %d states. Dropped %d sequences. Generated %d warnings." % (total_sequences, len(automata), dropped_sequences, warning_count), file=sys.stderr)
+print("Generated %d hash tables of %d entries in total." % (len(dense_tables), len(dense)), file=sys.stderr)
 # print_automata(automata)
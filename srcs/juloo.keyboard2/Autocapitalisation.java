@@ -75,6 +75,14 @@ public final class Autocapitalisation
     callback(true);
   }
 
+  /** [count] characters before the cursor have been removed. */
+  public void deleted(int count)
+  {
+    _cursor = Math.max(_cursor - count, 0);
+    _should_update_caps_mode = true;
+    callback(true);
+  }
+
   public void stop()
   {
     _should_enable_shift = false;
@@ -0,0 +1,245 @@
+package juloo.keyboard2;
+
+import android.content.res.Resources;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Layouts precompiled by [compile_layouts.py] into the [layouts.bin] asset.
+    Loading a layout from this file avoids parsing XML and looking up the same
+    key definitions again for every layouts.
+
+    The file is big-endian. Strings are stored once in a table and referred to
+    by their index, [0xFFFF] meaning [null]. Key definitions are stored as
+    strings and are resolved with [KeyValue.getKeyByName] the first time they
+    are used.
+
+    File:
+      u32 magic, u16 version, u16 nstrings, strings (u16 length, UTF-8 bytes),
+      u16 nentries, entries (u16 name, u8 type, u32 offset)
+    Keyboard:
+      u8 flags, f32 width, u16 script, u16 numpad_script, u16 name,
+      u16 nrows, rows, u16 nmodmap, modmap (u8 modifier, u16 a, u16 b)
+    Row:
+      f32 height, f32 shift, f32 scale, u16 nkeys, keys
+    Key:
+      u16 mask, u16 keysflags, u16 for each bits set in [mask],
+      f32 width, f32 shift, u8 role
+    The 9 first bits of [mask] are the key values, bit 9 is [anticircle] and
+    bit 10 is [indication]. */
+public final class BinaryLayouts
+{
+  public static final String ASSET_NAME = "layouts.bin";
+
+  static final int MAGIC = 0x554B4C31;
+  static final int VERSION = 1;
+  static final int NONE = 0xFFFF;
+
+  static final int TYPE_KEYBOARD = 0;
+  static final int TYPE_ROW = 1;
+
+  static final int F_BOTTOM_ROW = 1;
+  static final int F_EMBEDDED_NUMBER_ROW = 2;
+  static final int F_LOCALE_EXTRA_KEYS = 4;
+  static final int F_MODMAP = 8;
+
+  static final int MASK_ANTICIRCLE = 1 << 9;
+  static final int MASK_INDICATION = 1 << 10;
+
+  final ByteBuffer _data;
+  final String[] _strings;
+  /** Resolved lazily from [_strings]. Layouts can be loaded from several
+      threads, racing writes store equal immutable values. */
+  final KeyValue[] _values;
+  /** Offset of each layouts and rows, by name. The type is stored in the
+      high bits. */
+  final Map<String, Long> _entries;
+
+  public BinaryLayouts(ByteBuffer data) throws Exception
+  {
+    _data = data;
+    if (data.getInt(0) != MAGIC || u16(4) != VERSION)
+      throw new Exception("Incompatible layouts file");
+    int pos = 6;
+    int nstrings = u16(pos);
+    pos += 2;
+    _strings = new String[nstrings];
+    for (int i = 0; i < nstrings; i++)
+    {
+      int len = u16(pos);
+      byte[] b = new byte[len];
+      for (int j = 0; j < len; j++)
+        b[j] = data.get(pos + 2 + j);
+      _strings[i] = new String(b, StandardCharsets.UTF_8);
+      pos += 2 + len;
+    }
+    _values = new KeyValue[nstrings];
+    int nentries = u16(pos);
+    pos += 2;
+    _entries = new HashMap<String, Long>(nentries * 2);
+    for (int i = 0; i < nentries; i++)
+    {
+      long type = data.get(pos + 2) & 0xFF;
+      long offset = data.getInt(pos + 3) & 0xFFFFFFFFL;
+      _entries.put(_strings[u16(pos)], (type << 32) | offset);
+      pos += 7;
+    }
+  }
+
+  /** Returns [null] if [name] is not in the file or is not a keyboard. */
+  public KeyboardData load_keyboard(String name)
+  {
+    int offset = find_entry(name, TYPE_KEYBOARD);
+    if (offset < 0)
+      return null;
+    return new Reader(offset).keyboard();
+  }
+
+  /** Returns [null] if [name] is not in the file or is not a row. */
+  public KeyboardData.Row load_row(String name)
+  {
+    int offset = find_entry(name, TYPE_ROW);
+    if (offset < 0)
+      return null;
+    return new Reader(offset).row();
+  }
+
+  int find_entry(String name, int type)
+  {
+    Long e = _entries.get(name);
+    if (e == null || (int)(e >>> 32) != type)
+      return -1;
+    return (int)(e & 0xFFFFFFFFL);
+  }
+
+  int u16(int pos)
+  {
+    return _data.getShort(pos) & 0xFFFF;
+  }
+
+  String string(int i)
+  {
+    return (i == NONE) ? null : _strings[i];
+  }
+
+  KeyValue value(int i)
+  {
+    if (i == NONE)
+      return null;
+    KeyValue kv = _values[i];
+    if (kv == null)
+    {
+      kv = KeyValue.getKeyByName(_strings[i]);
+      _values[i] = kv;
+    }
+    return kv;
+  }
+
+  /** Sequential reading from an offset. Uses absolute reads, the buffer is
+      not modified. */
+  final class Reader
+  {
+    int _pos;
+
+    Reader(int pos) { _pos = pos; }
+
+    int u8() { return _data.get(_pos++) & 0xFF; }
+    int u16() { int v = BinaryLayouts.this.u16(_pos); _pos += 2; return v; }
+    float f32() { float v = _data.getFloat(_pos); _pos += 4; return v; }
+
+    /** See [KeyboardData.parse_keyboard]. */
+    KeyboardData keyboard()
+    {
+      int flags = u8();
+      float specified_kw = f32();
+      String script = string(u16());
+      String numpad_script = string(u16());
+      if (numpad_script == null)
+        numpad_script = script;
+      String name = string(u16());
+      int nrows = u16();
+      ArrayList<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>(nrows);
+      for (int i = 0; i < nrows; i++)
+        rows.add(row());
+      Modmap modmap = null;
+      int nmodmap = u16();
+      if ((flags & F_MODMAP) != 0)
+      {
+        modmap = new Modmap();
+        Modmap.M[] ms = Modmap.M.values();
+        for (int i = 0; i < nmodmap; i++)
+        {
+          Modmap.M m = ms[u8()];
+          KeyValue a = value(u16());
+          modmap.add(m, a, value(u16()));
+        }
+      }
+      float kw = (specified_kw != 0f) ? specified_kw
+        : KeyboardData.compute_max_width(rows);
+      return new KeyboardData(rows, kw, modmap, script, numpad_script, name,
+          (flags & F_BOTTOM_ROW) != 0, (flags & F_EMBEDDED_NUMBER_ROW) != 0,
+          (flags & F_LOCALE_EXTRA_KEYS) != 0);
+    }
+
+    /** See [KeyboardData.Row.parse]. */
+    KeyboardData.Row row()
+    {
+      float h = f32();
+      float shift = f32();
+      float scale = f32();
+      int nkeys = u16();
+      ArrayList<KeyboardData.Key> keys = new ArrayList<KeyboardData.Key>(nkeys);
+      for (int i = 0; i < nkeys; i++)
+        keys.add(key());
+      KeyboardData.Row row = new KeyboardData.Row(keys, h, shift);
+      if (scale > 0f)
+        row = row.updateWidth(scale);
+      return row;
+    }
+
+    /** See [KeyboardData.Key.parse]. */
+    KeyboardData.Key key()
+    {
+      int mask = u16();
+      int keysflags = u16();
+      KeyValue[] ks = new KeyValue[9];
+      for (int i = 0; i < 9; i++)
+        if ((mask & (1 << i)) != 0)
+          ks[i] = value(u16());
+      KeyValue anticircle =
+        ((mask & MASK_ANTICIRCLE) != 0) ? value(u16()) : null;
+      String indication =
+        ((mask & MASK_INDICATION) != 0) ? string(u16()) : null;
+      float width = f32();
+      float shift = f32();
+      KeyboardData.Key.Role role = KeyboardData.Key.Role.values()[u8()];
+      return new KeyboardData.Key(ks, anticircle, keysflags, width, shift,
+          indication, role);
+    }
+  }
+
+  static BinaryLayouts _instance = null;
+  static boolean _instance_loaded = false;
+
+  /** Returns [null] if the file is missing or can't be read. The file is
+      memory-mapped if it is stored uncompressed in the APK. Can be called
+      from any thread. */
+  public static synchronized BinaryLayouts get(Resources res)
+  {
+    if (_instance_loaded)
+      return _instance;
+    _instance_loaded = true;
+    try
+    {
+      _instance =
+        new BinaryLayouts(Utils.map_asset(res.getAssets(), ASSET_NAME));
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load " + ASSET_NAME, e);
+    }
+    return _instance;
+  }
+}
@@ -1,6 +1,12 @@
 package juloo.keyboard2;
 
-import java.util.Arrays;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 
 public final class ComposeKey
 {
@@ -26,24 +32,24 @@ public final class ComposeKey
       sequence matched. */
   public static KeyValue apply(int state, char c)
   {
-    char[] states = ComposeKeyData.states;
-    char[] edges = ComposeKeyData.edges;
-    int state_length = edges[state];
-    int next = Arrays.binarySearch(states, state + 1, state + state_length, c);
+    Data d = data();
+    int next = find_edge(d, state, c);
     if (next < 0)
       return null;
-    next = edges[next];
-    int next_header = states[next];
-    if (next_header == 0) // Enter a new intermediate state.
-      return KeyValue.makeComposePending(String.valueOf(c), next, 0);
-    else if (next_header == 0xFFFF) // String final state
+    next = d.edges.get(next);
+    int next_header = d.states.get(next);
+    if (next_header == 0xFFFF) // String final state
     {
-      int next_length = edges[next];
+      int next_length = d.edges.get(next);
       return KeyValue.getKeyByName(
-          new String(states, next + 1, next_length - 1));
+          d.states.subSequence(next + 1, next + next_length).toString());
     }
+    else if (next_header == 0 || next_header >= DENSE_HEADER)
+      // Enter a new intermediate state.
+      return KeyValue.intern(
+          KeyValue.makeComposePending(String.valueOf(c), next, 0));
     else // Character final state.
-      return KeyValue.makeCharKey((char)next_header);
+      return KeyValue.intern(KeyValue.makeCharKey((char)next_header));
   }
 
   /** Apply char [c] to the pending compose sequence. If the application resolves
@@ -52,19 +58,64 @@ public final class ComposeKey
       apply substitutions for word suggestions. */
   public static char transform_char(int state, char c)
   {
-    char[] states = ComposeKeyData.states;
-    char[] edges = ComposeKeyData.edges;
-    int state_length = edges[state];
-    int next = Arrays.binarySearch(states, state + 1, state + state_length, c);
+    Data d = data();
+    int next = find_edge(d, state, c);
     if (next < 0)
       return 0;
-    next = edges[next];
-    int next_header = states[next];
-    if (next_header == 0 || next_header == 0xFFFF)
+    next = d.edges.get(next);
+    int next_header = d.states.get(next);
+    if (next_header == 0 || next_header >= DENSE_HEADER)
       return 0;
     return (char)next_header;
   }
 
+  /** Index in [states] of the transition from [state] on [c] or a negative
+      number if there's none. States with many transitions have a hash table,
+      the others are searched with a binary search. */
+  static int find_edge(Data d, int state, char c)
+  {
+    CharBuffer states = d.states;
+    if (state >= states.limit()) // [Data.EMPTY]
+      return -1;
+    int header = states.get(state);
+    if (header < DENSE_HEADER)
+    {
+      int lo = state + 1;
+      int hi = state + d.edges.get(state) - 1;
+      while (lo <= hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        char m = states.get(mid);
+        if (m < c)
+          lo = mid + 1;
+        else if (m > c)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -1;
+    }
+    int[] tables = d.dense_tables;
+    int t = (header - DENSE_HEADER) * 3;
+    int offset = tables[t];
+    int bits = tables[t + 2];
+    int mask = (1 << bits) - 1;
+    CharBuffer dense = d.dense;
+    int i = (c * tables[t + 1]) >>> (32 - bits);
+    while (true)
+    {
+      int e = dense.get(offset + i);
+      if (e == 0)
+        return -1;
+      if (states.get(e) == c)
+        return e;
+      i = (i + 1) & mask;
+    }
+  }
+
+  /** Header of the states that have a hash table, see [find_edge]. */
+  static final int DENSE_HEADER = 0x8000;
+
   /** Apply each char of a string to a sequence. Returns [null] if no sequence
       matched. */
   public static KeyValue apply(int prev, String s)
@@ -84,6 +135,124 @@ public final class ComposeKey
     }
   }
 
+  public static final String ASSET_NAME = "compose.bin";
+
+  static AssetManager _assets = null;
+  static volatile Data _data = null;
+
+  /** The state machine is loaded from the assets of [res] the first time it
+      is used. */
+  public static void init(Resources res)
+  {
+    _assets = res.getAssets();
+  }
+
+  static Data data()
+  {
+    Data d = _data;
+    return (d != null) ? d : load();
+  }
+
+  static synchronized Data load()
+  {
+    if (_data != null)
+      return _data;
+    long start = System.nanoTime();
+    Data d;
+    try
+    {
+      d = new Data(read_data());
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load " + ASSET_NAME, e);
+      d = Data.EMPTY;
+    }
+    Logs.debug("Loaded " + ASSET_NAME + " in "
+        + ((System.nanoTime() - start) / 1000) + "us");
+    _data = d;
+    return d;
+  }
+
+  /** Read from the classpath when [init] wasn't called, in unit tests. */
+  static ByteBuffer read_data() throws Exception
+  {
+    if (_assets != null)
+      return Utils.map_asset(_assets, ASSET_NAME);
+    InputStream inp = ComposeKey.class.getResourceAsStream("/" + ASSET_NAME);
+    if (inp == null)
+      throw new FileNotFoundException(ASSET_NAME);
+    try
+    {
+      return ByteBuffer.wrap(Utils.read_all_bytes(inp));
+    }
+    finally
+    {
+      inp.close();
+    }
+  }
+
+  /** The arrays of the state machine, generated by
+      [srcs/compose/compile.py]. The file is little-endian and the arrays are
+      read directly from the mapped file.
+
+      File:
+        u32 magic, u16 version, u16 unused, u32 states length,
+        u32 dense length, u32 number of tables,
+        dense_tables (3 x i32 per table), states (u16 array),
+        edges (u16 array), dense (u16 array) */
+  static final class Data
+  {
+    static final int MAGIC = 0x554B4331;
+    static final int VERSION = 1;
+
+    public final CharBuffer states;
+    public final CharBuffer edges;
+    public final CharBuffer dense;
+    public final int[] dense_tables;
+
+    /** Used when the file can't be loaded, no sequence match. */
+    static final Data EMPTY = new Data();
+
+    Data(ByteBuffer buf) throws Exception
+    {
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (buf.getInt(0) != MAGIC || (buf.getShort(4) & 0xFFFF) != VERSION)
+        throw new Exception("Incompatible " + ASSET_NAME);
+      int states_length = buf.getInt(8);
+      int dense_length = buf.getInt(12);
+      int n_tables = buf.getInt(16);
+      if (states_length != ComposeKeyData.STATES_LENGTH)
+        throw new Exception(ASSET_NAME + " doesn't match ComposeKeyData");
+      int pos = 20;
+      dense_tables = new int[n_tables * 3];
+      for (int i = 0; i < dense_tables.length; i++, pos += 4)
+        dense_tables[i] = buf.getInt(pos);
+      states = chars(buf, pos, states_length);
+      pos += states_length * 2;
+      edges = chars(buf, pos, states_length);
+      pos += states_length * 2;
+      dense = chars(buf, pos, dense_length);
+    }
+
+    private Data()
+    {
+      states = CharBuffer.allocate(0);
+      edges = states;
+      dense = states;
+      dense_tables = new int[0];
+    }
+
+    static CharBuffer chars(ByteBuffer buf, int pos, int length)
+    {
+      ByteBuffer b = buf.duplicate();
+      b.limit(pos + length * 2);
+      b.position(pos);
+      // [slice] doesn't preserve the byte order.
+      return b.slice().order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+    }
+  }
+
   /** The state machine is comprised of two arrays.
 
       The [states] array represents the different states and the associated
@@ -92,10 +261,13 @@ public final class ComposeKey
       - If the header is equal to [0],
         The remaining cells are the transitions characters, sorted
         alphabetically.
-      - If the header is positive,
+      - If the header is between [0x8000] and [0xFFFE],
+        Same as [0] but the state has a hash table. [header - 0x8000] is the
+        index of the table in [dense_tables].
+      - If the header is between [1] and [0x7FFF],
         This is a final state, [states[s]] is the result of the sequence.
         In this case, [edges[s]] must be equal to [1].
-      - If the header is equal to [-1],
+      - If the header is equal to [0xFFFF],
         This is a final state, the remaining cells represent the result string
         which starts at index [s + 1] and has a length of [edges[s] - 1].
 
@@ -105,5 +277,12 @@ public final class ComposeKey
         occupied by the state [s], including the header cell.
       - If [states[s]] is a transition, [edges[s]] is the index of the state to
         jump into.
-      - If [states[s]] is a part of a final state, [edges[s]] is not used. */
+      - If [states[s]] is a part of a final state, [edges[s]] is not used.
+
+      The [dense] array contains the hash tables, one after the other. Each
+      table starts at offset [dense_tables[t * 3]] and has
+      [2 ^ dense_tables[t * 3 + 2]] entries. A char [c] is looked up at
+      [(c * dense_tables[t * 3 + 1]) >>> (32 - bits)] then at the next entries
+      until an empty entry is found. The entries are indexes in [states] of a
+      transition or [0] for empty entries. */
 }
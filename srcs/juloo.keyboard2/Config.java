@@ -43,6 +43,10 @@ public final class Config
   public boolean add_number_row;
   public boolean number_row_symbols;
   public float swipe_dist_px;
+  /** Send swiped characters before the pointer is released. See
+      [Pointers.early_commit]. */
+  public boolean swipe_early_commit;
+  public float swipe_early_commit_dist_px;
   public float slide_step_px;
   public boolean suggestions_enabled;
   // Let the system handle vibration when false.
@@ -52,6 +56,9 @@ public final class Config
   public long longPressTimeout;
   public long longPressInterval;
   public boolean keyrepeat_enabled;
+  /** Key repeat speeds up by this ratio of the initial speed after each
+      repeat. See [Pointers.repeat_interval]. */
+  public float keyrepeat_acceleration;
   public float margin_bottom;
   public int keyboard_rows_height_pixels;
   public int screenHeightPixels;
@@ -76,6 +83,10 @@ public final class Config
   public int clipboard_history_duration;
   public boolean space_bar_auto_complete;
   public boolean physical_keyboard_hide;
+  /** Draw the keys that are not pressed from a cached bitmap. */
+  public boolean static_layer_rendering;
+  /** See [LatencyTrace]. */
+  public boolean latency_trace;
 
   // Dynamically set
   /** Configuration options implied by the connected editor. */
@@ -118,10 +129,95 @@ public final class Config
     extra_keys_subtype = null;
   }
 
-  /*
-   ** Reload prefs
-   */
-  public void refresh(Resources res, Boolean foldableUnfolded, Dictionaries dicts)
+  /** Preferences are grouped by the cost of reloading them. The derived
+      state of a group is recomputed only when a preference in the group
+      changed, see [pref_changed()]. */
+  static final int PREFS_LAYOUTS = 0;
+  static final int PREFS_EXTRA_KEYS = 1;
+  /** Options that are cheap to read and the values that depend on the
+      screen. */
+  static final int PREFS_OTHER = 2;
+  static final int PREFS_GROUPS = 3;
+
+  /** Incremented when a preference of the group changes. */
+  final int[] _prefs_versions = new int[PREFS_GROUPS];
+  /** Value of [_prefs_versions] at the last [refresh()]. [-1] forces the
+      first refresh. */
+  final int[] _refreshed_versions = new int[]{ -1, -1, -1 };
+  /** Configuration at the last [refresh()]. Values derived from the screen
+      size, the orientation and the night mode are recomputed when it
+      changes. */
+  Configuration _refreshed_configuration = null;
+  /** Incremented each time [refresh()] changes the config. */
+  public int version = 0;
+
+  /** Must be called when the preference [key] changed. [key] is [null] when
+      every preferences might have changed. */
+  public void pref_changed(String key)
+  {
+    if (key == null)
+    {
+      for (int g = 0; g < PREFS_GROUPS; g++)
+        _prefs_versions[g]++;
+      return;
+    }
+    _prefs_versions[prefs_group(key)]++;
+  }
+
+  static int prefs_group(String key)
+  {
+    if (key.equals(LayoutsPreference.KEY))
+      return PREFS_LAYOUTS;
+    if (key.equals(CustomExtraKeysPreference.KEY)
+        || key.startsWith(ExtraKeysPreference.pref_key_of_key_name("")))
+      return PREFS_EXTRA_KEYS;
+    return PREFS_OTHER;
+  }
+
+  /** Whether the preferences in [group] changed since the last [refresh()].
+      Mark the group as refreshed. */
+  boolean prefs_group_changed(int group)
+  {
+    if (_refreshed_versions[group] == _prefs_versions[group])
+      return false;
+    _refreshed_versions[group] = _prefs_versions[group];
+    return true;
+  }
+
+  /** Reload the preferences that changed since the last call, as reported
+      by [pref_changed()], and the values that depend on the screen if the
+      configuration changed. Returns [false] if nothing changed. */
+  public boolean refresh(Resources res, Boolean foldableUnfolded, Dictionaries dicts)
+  {
+    Configuration conf = res.getConfiguration();
+    boolean conf_changed = _refreshed_configuration == null
+      || !_refreshed_configuration.equals(conf)
+      || foldable_unfolded != foldableUnfolded;
+    boolean changed = conf_changed;
+    if (prefs_group_changed(PREFS_LAYOUTS))
+    {
+      layouts = LayoutsPreference.load_from_preferences(res, _prefs);
+      changed = true;
+    }
+    if (prefs_group_changed(PREFS_EXTRA_KEYS))
+    {
+      extra_keys_param = ExtraKeysPreference.get_extra_keys(_prefs);
+      extra_keys_custom = CustomExtraKeysPreference.get(_prefs);
+      changed = true;
+    }
+    if (prefs_group_changed(PREFS_OTHER) || conf_changed)
+    {
+      _refreshed_configuration = new Configuration(conf);
+      refresh_values(res, foldableUnfolded);
+      changed = true;
+    }
+    if (changed)
+      version++;
+    return changed;
+  }
+
+  /** Values of the [PREFS_OTHER] group. */
+  void refresh_values(Resources res, Boolean foldableUnfolded)
   {
     DisplayMetrics dm = res.getDisplayMetrics();
     orientation_landscape = res.getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE;
@@ -142,7 +238,6 @@ public final class Config
     {
       keyboardHeightPercent = _prefs.getInt(foldable_unfolded ? "keyboard_height_unfolded" : "keyboard_height", 35);
     }
-    layouts = LayoutsPreference.load_from_preferences(res, _prefs);
     inverse_numpad = _prefs.getString("numpad_layout", "default").equals("low_first");
     String number_row = _prefs.getString("number_row", "no_number_row");
     add_number_row = !number_row.equals("no_number_row");
@@ -156,6 +251,8 @@ public final class Config
     float swipe_scaling = Math.min(dm.widthPixels, dm.heightPixels) / 10.f * dpi_ratio;
     float swipe_dist_value = Float.valueOf(_prefs.getString("swipe_dist", "15"));
     swipe_dist_px = swipe_dist_value / 25.f * swipe_scaling;
+    swipe_early_commit = _prefs.getBoolean("swipe_early_commit", false);
+    swipe_early_commit_dist_px = swipe_dist_px * 2.f;
     float slider_sensitivity = Float.valueOf(_prefs.getString("slider_sensitivity", "30")) / 100.f;
     slide_step_px = slider_sensitivity * swipe_scaling;
     vibrate_custom = _prefs.getBoolean("vibrate_custom", false);
@@ -163,6 +260,7 @@ public final class Config
     longPressTimeout = _prefs.getInt("longpress_timeout", 600);
     longPressInterval = _prefs.getInt("longpress_interval", 65);
     keyrepeat_enabled = _prefs.getBoolean("keyrepeat_enabled", true);
+    keyrepeat_acceleration = _prefs.getInt("keyrepeat_acceleration", 0) / 100.f;
     margin_bottom = get_dip_pref_oriented(dm, "margin_bottom", 7, 3);
     key_vertical_margin = get_dip_pref(dm, "key_vertical_margin", 1.5f) / 100;
     key_horizontal_margin = get_dip_pref(dm, "key_horizontal_margin", 2) / 100;
@@ -191,8 +289,6 @@ public final class Config
     theme = getThemeId(res, _prefs.getString("theme", ""));
     autocapitalisation = _prefs.getBoolean("autocapitalisation", true);
     change_method_key_replacement = get_change_method_key_replacement(_prefs);
-    extra_keys_param = ExtraKeysPreference.get_extra_keys(_prefs);
-    extra_keys_custom = CustomExtraKeysPreference.get(_prefs);
     selected_number_layout = NumberLayout.of_string(_prefs.getString("number_entry_layout", "pin"));
     current_layout_narrow = _prefs.getInt("current_layout_portrait", 0);
     current_layout_wide = _prefs.getInt("current_layout_landscape", 0);
@@ -201,6 +297,8 @@ public final class Config
     clipboard_history_duration = Integer.parseInt(_prefs.getString("clipboard_history_duration", "5"));
     space_bar_auto_complete = _prefs.getBoolean("space_bar_auto_complete", false);
     physical_keyboard_hide = _prefs.getString("physical_keyboard_behavior", "hide").equals("hide");
+    static_layer_rendering = _prefs.getBoolean("static_layer_rendering", false);
+    latency_trace = _prefs.getBoolean("latency_trace", false);
     float screen_width_dp = dm.widthPixels / dm.density;
     wide_screen = screen_width_dp >= WIDE_DEVICE_THRESHOLD;
     split_layout = get_split_layout();
@@ -333,6 +431,8 @@ public final class Config
   {
     public void key_down(KeyValue value, boolean is_swipe);
     public void key_up(KeyValue value, Pointers.Modifiers mods);
+    /** Undo a [key_up] for a key that types text. */
+    public void key_retract(KeyValue value);
     public void mods_changed(Pointers.Modifiers mods);
     public void suggestion_entered(String text);
   }
@@ -0,0 +1,205 @@
+package juloo.keyboard2;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import java.util.Arrays;
+
+/** Drive the timers of several objects from a single [Handler] message.
+    Each object has at most one pending deadline. Deadlines are kept in an
+    array sorted by time and the message is posted for the earliest one.
+    Timers expiring within [BATCH_MS] of the earliest one are handled by the
+    same message, which is posted for the last of them. A timer never fires
+    before its deadline. */
+public final class DeadlineScheduler<T> implements Handler.Callback
+{
+  /** Deadlines closer than this are considered to be in the same frame. The
+      earliest of them might fire up to this late. */
+  static final long BATCH_MS = 8;
+
+  static final int MSG_TICK = 0;
+
+  final Handler _handler;
+  final Callback<T> _callback;
+  /** Sorted by [_deadlines], timers with the same deadline are kept in the
+      order they were scheduled. */
+  long[] _deadlines = new long[8];
+  Object[] _objects = new Object[8];
+  int _size = 0;
+  /** Time for which [MSG_TICK] is posted or [-1]. See [wakeup_time]. */
+  long _posted_at = -1;
+  /** Timers being passed to [Callback.expired]. Reused. Entries are set to
+      [null] if they are cancelled or scheduled again by the callback. */
+  Object[] _expired = new Object[8];
+  int _expired_count = 0;
+  /** Avoid posting [MSG_TICK] from the callback. */
+  boolean _dispatching = false;
+
+  public DeadlineScheduler(Callback<T> cb)
+  {
+    _handler = new Handler(this);
+    _callback = cb;
+  }
+
+  /** Fire [obj] in [delay_ms]. A deadline previously set for [obj] is
+      replaced. */
+  public void schedule(T obj, long delay_ms)
+  {
+    remove(obj);
+    long deadline = SystemClock.uptimeMillis() + delay_ms;
+    if (_size == _deadlines.length)
+    {
+      _deadlines = Arrays.copyOf(_deadlines, _size * 2);
+      _objects = Arrays.copyOf(_objects, _size * 2);
+    }
+    int i = first_after(deadline);
+    System.arraycopy(_deadlines, i, _deadlines, i + 1, _size - i);
+    System.arraycopy(_objects, i, _objects, i + 1, _size - i);
+    _deadlines[i] = deadline;
+    _objects[i] = obj;
+    _size++;
+    post_tick();
+  }
+
+  /** Remove the deadline of [obj], if any. */
+  public void cancel(T obj)
+  {
+    if (remove(obj))
+      post_tick();
+  }
+
+  public void cancel_all()
+  {
+    Arrays.fill(_expired, 0, _expired_count, null);
+    Arrays.fill(_objects, 0, _size, null);
+    _size = 0;
+    post_tick();
+  }
+
+  public boolean is_scheduled(T obj)
+  {
+    return index_of(obj) >= 0;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean handleMessage(Message msg)
+  {
+    if (msg.what != MSG_TICK)
+      return false;
+    _posted_at = -1;
+    long now = SystemClock.uptimeMillis();
+    int n = 0;
+    while (n < _size && _deadlines[n] <= now)
+      n++;
+    if (n > 0)
+    {
+      if (_expired.length < n)
+        _expired = new Object[n * 2];
+      System.arraycopy(_objects, 0, _expired, 0, n);
+      remove_range(n);
+      _expired_count = n;
+      _dispatching = true;
+      try
+      {
+        for (int i = 0; i < n; i++)
+        {
+          Object obj = _expired[i];
+          if (obj != null)
+            _callback.expired((T)obj);
+        }
+      }
+      finally
+      {
+        _dispatching = false;
+        Arrays.fill(_expired, 0, n, null);
+        _expired_count = 0;
+      }
+    }
+    post_tick();
+    return true;
+  }
+
+  public static interface Callback<T>
+  {
+    /** [obj] reached its deadline. It can be scheduled again. */
+    public void expired(T obj);
+  }
+
+  /** Make sure [MSG_TICK] is posted for the earliest deadline. */
+  void post_tick()
+  {
+    if (_dispatching)
+      return;
+    if (_size == 0)
+    {
+      if (_posted_at >= 0)
+      {
+        _handler.removeMessages(MSG_TICK);
+        _posted_at = -1;
+      }
+      return;
+    }
+    long at = wakeup_time();
+    if (_posted_at == at)
+      return;
+    _handler.removeMessages(MSG_TICK);
+    _handler.sendEmptyMessageAtTime(MSG_TICK, at);
+    _posted_at = at;
+  }
+
+  /** The last deadline within [BATCH_MS] of the earliest one. [_size] must
+      not be [0]. */
+  long wakeup_time()
+  {
+    return _deadlines[first_after(_deadlines[0] + BATCH_MS) - 1];
+  }
+
+  boolean remove(T obj)
+  {
+    for (int j = 0; j < _expired_count; j++)
+      if (_expired[j] == obj)
+        _expired[j] = null;
+    int i = index_of(obj);
+    if (i < 0)
+      return false;
+    System.arraycopy(_deadlines, i + 1, _deadlines, i, _size - i - 1);
+    System.arraycopy(_objects, i + 1, _objects, i, _size - i - 1);
+    _size--;
+    _objects[_size] = null;
+    return true;
+  }
+
+  /** Remove the [n] first timers. */
+  void remove_range(int n)
+  {
+    System.arraycopy(_deadlines, n, _deadlines, 0, _size - n);
+    System.arraycopy(_objects, n, _objects, 0, _size - n);
+    Arrays.fill(_objects, _size - n, _size, null);
+    _size -= n;
+  }
+
+  int index_of(T obj)
+  {
+    for (int i = 0; i < _size; i++)
+      if (_objects[i] == obj)
+        return i;
+    return -1;
+  }
+
+  /** Index of the first timer with a deadline greater than [deadline]. */
+  int first_after(long deadline)
+  {
+    int lo = 0;
+    int hi = _size;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (_deadlines[mid] <= deadline)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
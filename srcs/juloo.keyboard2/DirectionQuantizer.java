@@ -0,0 +1,144 @@
+package juloo.keyboard2;
+
+/** Quantize the direction of a swipe into 16 sectors without calling
+    [Math.atan2]. The result is the same as:
+
+      double a = Math.atan2(dy, dx) + Math.PI;
+      int direction = ((int)(a * 8 / Math.PI) + 12) % 16;
+
+    Directions are numbered clockwise, starting at the top, see
+    [Pointers.getKeyAtDirection]. The sector is found by comparing the slope
+    of the vector with the slopes of the sector boundaries. Rounding in the
+    formula above decides the sector of vectors that are extremely close to
+    a boundary, these rare vectors are handled by [atan2_direction]. */
+public final class DirectionQuantizer
+{
+  /** Slope of the boundaries at [PI/8] and [3*PI/8]. */
+  static final double T1 = Math.tan(Math.PI / 8);
+  static final double T2 = Math.tan(3 * Math.PI / 8);
+
+  /** Vectors closer than this to a boundary, relative to their length, are
+      quantized using [atan2_direction]. Much larger than the error of the
+      [atan2] formula and much smaller than the precision of touch events. */
+  static final double NEAR_BOUNDARY = 1e-9;
+
+  /** Hysteresis margin, in radians, applied at the boundary between two
+      adjacent sectors. A quarter of a sector. */
+  static final double HYSTERESIS = Math.PI / 32;
+  static final double HYSTERESIS_SIN2 =
+    Math.sin(HYSTERESIS) * Math.sin(HYSTERESIS);
+
+  /** Direction of vectors that are exactly on an axis or a diagonal, where
+      rounding in the [atan2] formula decides the sector. Indexed by
+      [boundary_index]. The last entry is for the null vector. */
+  static final int[] BOUNDARY_DIRECTIONS = new int[9];
+
+  /** Unit vectors of the 16 sector boundaries in the directions space. The
+      boundary [i] is between the directions [i - 1] and [i]. */
+  static final double[] BOUNDARY_COS = new double[16];
+  static final double[] BOUNDARY_SIN = new double[16];
+
+  static
+  {
+    // The boundary cases are computed once using the reference formula.
+    float[][] boundary_vectors = new float[][]{
+      {-1, 0}, {-1, -1}, {0, -1}, {1, -1}, {1, 0}, {1, 1}, {0, 1}, {-1, 1},
+      {0, 0}
+    };
+    for (int i = 0; i < boundary_vectors.length; i++)
+    {
+      BOUNDARY_DIRECTIONS[i] =
+        atan2_direction(boundary_vectors[i][0], boundary_vectors[i][1]);
+    }
+    for (int d = 0; d < 16; d++)
+    {
+      // Direction [0] starts at 3/4 of the turn in the [atan2] space.
+      double b = ((d + 4) % 16) * Math.PI / 8;
+      BOUNDARY_COS[d] = Math.cos(b);
+      BOUNDARY_SIN[d] = Math.sin(b);
+    }
+  }
+
+  /** Returns an integer between [0] and [15]. */
+  public static int direction(float dx, float dy)
+  {
+    // Quantize the angle of [(u, v)], which is [atan2(dy, dx) + PI].
+    double u = -dx;
+    double v = -dy;
+    double ax = Math.abs(u);
+    double ay = Math.abs(v);
+    if (ax == 0.0 || ay == 0.0 || ax == ay)
+      return BOUNDARY_DIRECTIONS[boundary_index(u, v)];
+    // Sector within the quadrant. [m] is the distance to the nearest
+    // boundary compared.
+    int k;
+    double m;
+    if (ay < ax)
+    {
+      double t = T1 * ax;
+      k = (ay < t) ? 0 : 1;
+      m = Math.min(Math.min(ay, Math.abs(ay - t)), ax - ay);
+    }
+    else
+    {
+      double t = T2 * ax;
+      k = (ay < t) ? 2 : 3;
+      m = Math.min(Math.min(ax, Math.abs(ay - t)), ay - ax);
+    }
+    if (m < NEAR_BOUNDARY * (ax + ay))
+      return atan2_direction(dx, dy);
+    int sector;
+    if (u > 0)
+      sector = (v > 0) ? k : 15 - k;
+    else
+      sector = (v > 0) ? 7 - k : 8 + k;
+    return (sector + 12) % 16;
+  }
+
+  /** Like [direction] but stays at [prev_direction] while the vector is
+      within [HYSTERESIS] of the boundary with an adjacent sector. This avoids
+      flip-flopping between two sectors when the pointer moves along a
+      boundary. [prev_direction] is ignored if it is [-1]. */
+  public static int direction(float dx, float dy, int prev_direction)
+  {
+    int d = direction(dx, dy);
+    if (prev_direction < 0 || d == prev_direction)
+      return d;
+    int boundary;
+    if (d == ((prev_direction + 1) & 15))
+      boundary = d;
+    else if (prev_direction == ((d + 1) & 15))
+      boundary = prev_direction;
+    else
+      return d;
+    // Cross product with the boundary is [r * sin(angle to the boundary)].
+    double u = -dx;
+    double v = -dy;
+    double cross = BOUNDARY_COS[boundary] * v - BOUNDARY_SIN[boundary] * u;
+    if (cross * cross < HYSTERESIS_SIN2 * (u * u + v * v))
+      return prev_direction;
+    return d;
+  }
+
+  /** The reference formula. */
+  static int atan2_direction(float dx, float dy)
+  {
+    double a = Math.atan2(dy, dx) + Math.PI;
+    return ((int)(a * 8 / Math.PI) + 12) % 16;
+  }
+
+  /** Index into [BOUNDARY_DIRECTIONS] for vectors on an axis or a diagonal,
+      counter-clockwise starting from the positive [u] axis. */
+  static int boundary_index(double u, double v)
+  {
+    if (u == 0.0 && v == 0.0)
+      return 8;
+    if (v == 0.0)
+      return (u > 0) ? 0 : 4;
+    if (u == 0.0)
+      return (v > 0) ? 2 : 6;
+    if (u > 0)
+      return (v > 0) ? 1 : 7;
+    return (v > 0) ? 3 : 5;
+  }
+}
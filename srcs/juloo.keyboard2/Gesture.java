@@ -9,6 +9,12 @@ public final class Gesture
   State state;
 
   public Gesture(int starting_direction)
+  {
+    restart(starting_direction);
+  }
+
+  /** Reset the state as if the object was just constructed. */
+  public void restart(int starting_direction)
   {
     current_dir = starting_direction;
     state = State.Swiped;
@@ -82,6 +88,10 @@ public final class Gesture
   public boolean changed_direction(int direction)
   {
     int d = dir_diff(current_dir, direction);
+    // Repeated samples in the same direction must not cancel a clockwise
+    // rotation.
+    if (d == 0)
+      return false;
     boolean clockwise = d > 0;
     switch (state)
     {
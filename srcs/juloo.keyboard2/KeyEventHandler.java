@@ -105,6 +105,7 @@ public final class KeyEventHandler
   {
     if (key == null)
       return;
+    long trace_start = LatencyTrace.start();
     _next_last_action = LastAction.OTHER;
     Pointers.Modifiers old_mods = _mods;
     update_meta_state(mods);
@@ -123,6 +124,29 @@ public final class KeyEventHandler
     }
     update_meta_state(old_mods);
     _last_action = _next_last_action;
+    LatencyTrace.end(LatencyTrace.KEY_UP, trace_start);
+  }
+
+  @Override
+  public void key_retract(KeyValue key)
+  {
+    String text;
+    switch (key.getKind())
+    {
+      case Char: text = String.valueOf(key.getChar()); break;
+      case String: text = key.getString(); break;
+      default: return;
+    }
+    InputConnection conn = _recv.getCurrentInputConnection();
+    if (conn == null)
+      return;
+    // Don't remove text that was modified by the editor.
+    CharSequence before = conn.getTextBeforeCursor(text.length(), 0);
+    if (before == null || !text.contentEquals(before))
+      return;
+    replace_surrounding_text(text.length(), 0, "");
+    _autocap.deleted(text.length());
+    _last_action = LastAction.OTHER;
   }
 
   @Override
@@ -242,9 +266,12 @@ public final class KeyEventHandler
     InputConnection conn = _recv.getCurrentInputConnection();
     if (conn == null)
       return;
+    long t = LatencyTrace.start();
     conn.sendKeyEvent(new KeyEvent(1, 1, eventAction, eventCode, 0,
           metaState, KeyCharacterMap.VIRTUAL_KEYBOARD, 0,
           KeyEvent.FLAG_SOFT_KEYBOARD | KeyEvent.FLAG_KEEP_TOUCH_MODE));
+    LatencyTrace.end(LatencyTrace.IPC, t);
+    LatencyTrace.committed();
     if (eventAction == KeyEvent.ACTION_UP)
     {
       _autocap.event_sent(eventCode, metaState);
@@ -259,7 +286,10 @@ public final class KeyEventHandler
       return;
     _autocap.typed(text);
     _typedword.typed(text);
+    long t = LatencyTrace.start();
     conn.commitText(text, 1);
+    LatencyTrace.end(LatencyTrace.IPC, t);
+    LatencyTrace.committed();
   }
 
   void replace_surrounding_text(int remove_before, int remove_after,
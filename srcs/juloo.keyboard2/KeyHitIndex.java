@@ -0,0 +1,135 @@
+package juloo.keyboard2;
+
+import java.util.List;
+
+/** Find the key at a position on the keyboard. The edges of rows and keys
+    are computed once for a given layout and geometry and are searched using
+    binary search. Coordinates are in pixels, relative to the view. */
+public final class KeyHitIndex
+{
+  final KeyboardData _keyboard;
+  /** Top edge of the first row, including its shift. */
+  final float _top;
+  /** Bottom edge of each rows. A row extends to the bottom edge of the
+      previous row, its shift is part of it. */
+  final float[] _row_bottoms;
+  /** Top edge of each rows, not including the shift. */
+  final float[] _row_tops;
+  /** Left and right edges of the keys of each rows. The shift of a key is
+      not part of it. */
+  final float[][] _key_lefts;
+  final float[][] _key_rights;
+
+  public KeyHitIndex(KeyboardData kw, float margin_left, float margin_top,
+      float key_width, float row_height)
+  {
+    _keyboard = kw;
+    _top = margin_top;
+    int nrows = kw.rows.size();
+    _row_bottoms = new float[nrows];
+    _row_tops = new float[nrows];
+    _key_lefts = new float[nrows][];
+    _key_rights = new float[nrows][];
+    float y = margin_top;
+    for (int r = 0; r < nrows; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      y += row.shift * row_height;
+      _row_tops[r] = y;
+      y += row.height * row_height;
+      _row_bottoms[r] = y;
+      int nkeys = row.keys.size();
+      float[] lefts = new float[nkeys];
+      float[] rights = new float[nkeys];
+      float x = margin_left;
+      for (int k = 0; k < nkeys; k++)
+      {
+        KeyboardData.Key key = row.keys.get(k);
+        x += key.shift * key_width;
+        lefts[k] = x;
+        x += key.width * key_width;
+        rights[k] = x;
+      }
+      _key_lefts[r] = lefts;
+      _key_rights[r] = rights;
+    }
+  }
+
+  /** Index of the row at [y] or [-1] if outside of the keyboard. */
+  public int row_index_at(float y)
+  {
+    if (y < _top)
+      return -1;
+    int r = first_above(_row_bottoms, _row_bottoms.length, y);
+    return (r < _row_bottoms.length) ? r : -1;
+  }
+
+  /** Returns the key under the position or [null] if the position is
+      outside of the keyboard or in a gap between keys. */
+  public KeyboardData.Key key_at(float x, float y)
+  {
+    int r = row_index_at(y);
+    if (r < 0)
+      return null;
+    float[] rights = _key_rights[r];
+    int k = first_above(rights, rights.length, x);
+    if (k >= rights.length || x < _key_lefts[r][k])
+      return null;
+    return _keyboard.rows.get(r).keys.get(k);
+  }
+
+  /** Like [key_at] but returns the nearest key when the position falls in a
+      gap or in the margins. Returns [null] only if the keyboard has no keys. */
+  public KeyboardData.Key nearest_key(float x, float y)
+  {
+    int nrows = _row_bottoms.length;
+    if (nrows == 0)
+      return null;
+    int r = (y < _top) ? 0 : Math.min(first_above(_row_bottoms, nrows, y), nrows - 1);
+    // Rows without keys are skipped, looking downward then upward.
+    int rr = r;
+    while (rr < nrows && _key_rights[rr].length == 0)
+      rr++;
+    if (rr == nrows)
+    {
+      rr = r;
+      while (rr >= 0 && _key_rights[rr].length == 0)
+        rr--;
+      if (rr < 0)
+        return null;
+    }
+    float[] lefts = _key_lefts[rr];
+    float[] rights = _key_rights[rr];
+    int k = first_above(rights, rights.length, x);
+    List<KeyboardData.Key> keys = _keyboard.rows.get(rr).keys;
+    if (k >= rights.length)
+      return keys.get(rights.length - 1);
+    // In the gap on the left of key [k], choose the closest of the two keys.
+    if (x < lefts[k] && k > 0 && x - rights[k - 1] < lefts[k] - x)
+      return keys.get(k - 1);
+    return keys.get(k);
+  }
+
+  /** Bounds of the key at index [k] in row [r], where keys are drawn. */
+  public float key_left(int r, int k) { return _key_lefts[r][k]; }
+  public float key_right(int r, int k) { return _key_rights[r][k]; }
+  public float key_top(int r) { return _row_tops[r]; }
+  public float key_bottom(int r) { return _row_bottoms[r]; }
+
+  /** Index of the first element of [a] greater than [v], or [len] if there's
+      none. [a] must be sorted. */
+  static int first_above(float[] a, int len, float v)
+  {
+    int lo = 0;
+    int hi = len;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] <= v)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
@@ -2,6 +2,7 @@ package juloo.keyboard2;
 
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public final class KeyModifier
@@ -11,6 +12,8 @@ public final class KeyModifier
   private static Modmap _modmap = null;
   public static void set_modmap(Modmap mm)
   {
+    if (mm != _modmap)
+      _cache.clear();
     _modmap = mm;
   }
 
@@ -26,7 +29,7 @@ public final class KeyModifier
     /* Keys with an empty string are placeholder keys. */
     if (r.getString().length() == 0)
       return null;
-    return r;
+    return (r == k) ? r : KeyValue.intern(r);
   }
 
   /** Like [modify] but do not apply user modmaps. Used when evaluating macros
@@ -58,7 +61,29 @@ public final class KeyModifier
     return k;
   }
 
+  /** Results are cached. The result only depends on [k], [mod] and
+      [_modmap]. */
   public static KeyValue modify(KeyValue k, KeyValue.Modifier mod)
+  {
+    int m = (mod.ordinal() << 1) | ((_modmap != null) ? 1 : 0);
+    int slot = _cache.slot(k, m);
+    KeyValue r = _cache.result(slot);
+    if (r != null)
+    {
+      _cache.hit();
+      return r;
+    }
+    _cache.miss();
+    r = modify_uncached(k, mod);
+    if (r != null)
+    {
+      r = KeyValue.intern(r);
+      _cache.put(slot, k, m, r);
+    }
+    return r;
+  }
+
+  static KeyValue modify_uncached(KeyValue k, KeyValue.Modifier mod)
   {
     switch (mod)
     {
@@ -583,4 +608,131 @@ public final class KeyModifier
     }
     return KeyValue.makeHangulFinal(precomposed, final_idx);
   }
+
+  static final Cache _cache = new Cache();
+
+  /** Results of [modify(KeyValue, KeyValue.Modifier)]. The table is indexed
+      by key and by an integer made of the modifier's ordinal and of whether
+      [_modmap] is set. This is an open addressing table with linear probing.
+      It grows when it becomes half full and is cleared when it reaches
+      [MAX_CAPACITY]. Keys are usually interned and compare by identity. Only
+      used from the main thread. */
+  static final class Cache
+  {
+    static final int INITIAL_CAPACITY = 1024; // Must be a power of 2
+    static final int MAX_CAPACITY = 16384;
+    static final int LOOKUPS_PER_REPORT = 4096;
+
+    KeyValue[] _keys;
+    int[] _mods;
+    KeyValue[] _results;
+    int _size = 0;
+
+    /** Not reset by [clear]. */
+    long hits = 0;
+    long misses = 0;
+    int clears = 0;
+
+    Cache()
+    {
+      alloc(INITIAL_CAPACITY);
+    }
+
+    /** Index of the entry for [k] and [m] or of the free slot where it
+        should be inserted. Terminates because the table is never full. */
+    int slot(KeyValue k, int m)
+    {
+      int mask = _keys.length - 1;
+      int h = k.hashCode() * 31 + m;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      int i = h & mask;
+      while (true)
+      {
+        KeyValue ki = _keys[i];
+        if (ki == null || (_mods[i] == m && (ki == k || ki.sameKey(k))))
+          return i;
+        i = (i + 1) & mask;
+      }
+    }
+
+    /** [null] if the slot is free. */
+    KeyValue result(int slot)
+    {
+      return _results[slot];
+    }
+
+    /** [slot] must have been returned by [slot(k, m)]. */
+    void put(int slot, KeyValue k, int m, KeyValue r)
+    {
+      if (_size >= _keys.length / 2)
+      {
+        if (_keys.length < MAX_CAPACITY)
+          grow();
+        else
+          clear();
+        slot = slot(k, m);
+      }
+      _keys[slot] = k;
+      _mods[slot] = m;
+      _results[slot] = r;
+      _size++;
+    }
+
+    void clear()
+    {
+      if (_size == 0)
+        return;
+      Arrays.fill(_keys, null);
+      Arrays.fill(_results, null);
+      _size = 0;
+      clears++;
+    }
+
+    void grow()
+    {
+      KeyValue[] keys = _keys;
+      int[] mods = _mods;
+      KeyValue[] results = _results;
+      alloc(keys.length * 2);
+      for (int i = 0; i < keys.length; i++)
+      {
+        if (keys[i] == null)
+          continue;
+        int slot = slot(keys[i], mods[i]);
+        _keys[slot] = keys[i];
+        _mods[slot] = mods[i];
+        _results[slot] = results[i];
+      }
+    }
+
+    void alloc(int capacity)
+    {
+      _keys = new KeyValue[capacity];
+      _mods = new int[capacity];
+      _results = new KeyValue[capacity];
+    }
+
+    void hit()
+    {
+      hits++;
+      report();
+    }
+
+    void miss()
+    {
+      misses++;
+      report();
+    }
+
+    void report()
+    {
+      long lookups = hits + misses;
+      if (lookups % LOOKUPS_PER_REPORT != 0)
+        return;
+      Logs.debug("KeyModifier cache: " + (hits * 100 / lookups) + "% hits, "
+          + _size + " cached, " + clears + " clears");
+    }
+  }
 }
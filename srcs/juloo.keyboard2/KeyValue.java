@@ -1,7 +1,9 @@
 package juloo.keyboard2;
 
 import android.view.KeyEvent;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class KeyValue implements Comparable<KeyValue>
 {
@@ -297,6 +299,8 @@ public final class KeyValue implements Comparable<KeyValue>
   @Override
   public int compareTo(KeyValue snd)
   {
+    if (snd == this)
+      return 0;
     // Compare the kind and value first, then the flags.
     int d = (_code & ~FLAGS_BITS) - (snd._code & ~FLAGS_BITS);
     if (d != 0)
@@ -312,6 +316,8 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Type-safe alternative to [equals]. */
   public boolean sameKey(KeyValue snd)
   {
+    if (snd == this)
+      return true;
     if (snd == null)
       return false;
     return _code == snd._code && _payload.compareTo(snd._payload) == 0;
@@ -518,22 +524,61 @@ public final class KeyValue implements Comparable<KeyValue>
   }
 
   /** Return a key by its name. If the given name doesn't correspond to any
-      special key, it is parsed with [KeyValueParser]. */
+      special key, it is parsed with [KeyValueParser]. The result is interned
+      and remembered, the same instance is returned for the same name. */
   public static KeyValue getKeyByName(String name)
   {
-    KeyValue k = getSpecialKeyByName(name);
+    KeyValue k = _keys_by_name.get(name);
     if (k != null)
       return k;
-    try
+    k = getSpecialKeyByName(name);
+    if (k == null)
     {
-      return KeyValueParser.parse(name);
-    }
-    catch (KeyValueParser.ParseError _e)
-    {
-      return makeStringKey(name);
+      try
+      {
+        k = intern(KeyValueParser.parse(name));
+      }
+      catch (KeyValueParser.ParseError _e)
+      {
+        k = intern(makeStringKey(name));
+      }
     }
+    if (_keys_by_name.size() < INTERN_MAX_SIZE)
+      _keys_by_name.put(name, k);
+    return k;
   }
 
+  /** Return the canonical instance of a key equal to [kv]. Keys are
+      immutable, interning the keys returned by [getKeyByName] and the keys
+      computed by [KeyModifier] and [ComposeKey] avoids allocating many equal
+      keys and makes most comparisons succeed on identity. */
+  public static KeyValue intern(KeyValue kv)
+  {
+    if (kv == null)
+      return null;
+    KeyValue k = _interned.get(kv);
+    if (k != null)
+      return k;
+    if (_interned.size() >= INTERN_MAX_SIZE)
+      return kv;
+    k = _interned.putIfAbsent(kv, kv);
+    return (k == null) ? kv : k;
+  }
+
+  /** Bound on the size of the intern tables. Keys defined by the user, for
+      example in custom layouts, can make them grow. Keys are not interned
+      once the limit is reached. */
+  static final int INTERN_MAX_SIZE = 8192;
+
+  /** Layouts are also loaded from a background thread. */
+  private static final ConcurrentHashMap<KeyValue, KeyValue> _interned =
+    new ConcurrentHashMap<KeyValue, KeyValue>();
+  private static final ConcurrentHashMap<String, KeyValue> _keys_by_name =
+    new ConcurrentHashMap<String, KeyValue>();
+  /** Only special keys, [getSpecialKeyByName] returns [null] for other names. */
+  private static final ConcurrentHashMap<String, KeyValue> _special_keys =
+    new ConcurrentHashMap<String, KeyValue>();
+
   /** Keys constants. Keys which are accessed from the application's code. */
   public static final KeyValue ENTER = keyeventKey(0xE00E, KeyEvent.KEYCODE_ENTER, 0);
   public static final KeyValue CONFIG = eventKey(0xE004, Event.CONFIG, FLAG_SMALLER_FONT);
@@ -546,7 +591,31 @@ public final class KeyValue implements Comparable<KeyValue>
   public static final KeyValue VOICE_TYPING_CHOOSER = eventKey(0xE015, Event.SWITCH_VOICE_TYPING_CHOOSER, FLAG_SMALLER_FONT);
   public static final KeyValue COMPOSE_CANCEL = placeholderKey(0xE01A, Placeholder.COMPOSE_CANCEL, FLAG_SECONDARY);
 
+  static
+  {
+    // The constants are the canonical instances.
+    for (KeyValue kv : new KeyValue[]{ ENTER, CONFIG, SHIFT, COMPOSE,
+        SELECTION_MODE, CHANGE_METHOD, CHANGE_METHOD_PREV, CHANGE_METHOD_NEXT,
+        VOICE_TYPING_CHOOSER, COMPOSE_CANCEL })
+      intern(kv);
+  }
+
+  /** Return a special key or [null] if [name] doesn't correspond to a special
+      key. The result is interned and remembered. */
   public static KeyValue getSpecialKeyByName(String name)
+  {
+    KeyValue k = _special_keys.get(name);
+    if (k != null)
+      return k;
+    k = makeSpecialKeyByName(name);
+    if (k == null)
+      return null;
+    k = intern(k);
+    _special_keys.put(name, k);
+    return k;
+  }
+
+  private static KeyValue makeSpecialKeyByName(String name)
   {
     switch (name)
     {
@@ -931,6 +1000,18 @@ public final class KeyValue implements Comparable<KeyValue>
       }
       return _symbol.compareTo(snd._symbol);
     }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      return (obj instanceof Macro) && compareTo((Macro)obj) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Arrays.hashCode(keys) * 31 + _symbol.hashCode();
+    }
   };
 
   /** Stateful keys are keys whose symbol must be constantly computed from the
@@ -1,8 +1,6 @@
 package juloo.keyboard2;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
 Parse a key definition. The syntax for a key definition is:
@@ -26,10 +24,6 @@ Examples:
 */
 public final class KeyValueParser
 {
-  static Pattern KEYDEF_TOKEN;
-  static Pattern QUOTED_PAT;
-  static Pattern WORD_PAT;
-
   static public KeyValue parse(String input) throws ParseError
   {
     int symbol_ends = 0;
@@ -41,9 +35,7 @@ public final class KeyValueParser
     if (symbol_ends == input_len) // String key
       return KeyValue.makeStringKey(input);
     String symbol = input.substring(0, symbol_ends);
-    init();
-    Matcher m = KEYDEF_TOKEN.matcher(input);
-    m.region(symbol_ends + 1, input_len);
+    Scanner m = new Scanner(input, symbol_ends + 1);
     KeyValue first_key = parse_key_def(m);
     if (!parse_comma(m)) // Input is a single key def with a specified symbol
       return first_key.withSymbol(symbol);
@@ -55,15 +47,6 @@ public final class KeyValueParser
     return KeyValue.makeMacro(symbol, keydefs.toArray(new KeyValue[]{}), 0);
   }
 
-  static void init()
-  {
-    if (KEYDEF_TOKEN != null)
-      return;
-    KEYDEF_TOKEN = Pattern.compile("'|,|keyevent:|(?:[^\\\\',]+|\\\\.)+");
-    QUOTED_PAT = Pattern.compile("((?:[^'\\\\]+|\\\\.)*)'");
-    WORD_PAT = Pattern.compile("[a-zA-Z0-9_]+|.");
-  }
-
   static KeyValue key_by_name_or_str(String str)
   {
     KeyValue k = KeyValue.getSpecialKeyByName(str);
@@ -72,52 +55,52 @@ public final class KeyValueParser
     return KeyValue.makeStringKey(str);
   }
 
-  static KeyValue parse_key_def(Matcher m) throws ParseError
+  static KeyValue parse_key_def(Scanner m) throws ParseError
   {
-    if (!match(m, KEYDEF_TOKEN))
-      parseError("Expected key definition", m);
-    String token = m.group(0);
-    switch (token)
+    switch (m.keydef_token())
     {
-      case "'": return parse_string_keydef(m);
-      case ",": parseError("Unexpected comma", m); return null;
-      case "keyevent:": return parse_keyevent_keydef(m);
-      default: return key_by_name_or_str(remove_escaping(token));
+      case Scanner.TOKEN_NONE:
+        parseError("Expected key definition", m); return null;
+      case Scanner.TOKEN_QUOTE: return parse_string_keydef(m);
+      case Scanner.TOKEN_COMMA:
+        parseError("Unexpected comma", m); return null;
+      case Scanner.TOKEN_KEYEVENT: return parse_keyevent_keydef(m);
+      default: return key_by_name_or_str(remove_escaping(m.token()));
     }
   }
 
-  static KeyValue parse_string_keydef(Matcher m) throws ParseError
+  static KeyValue parse_string_keydef(Scanner m) throws ParseError
   {
-    if (!match(m, QUOTED_PAT))
+    if (!m.quoted())
       parseError("Unterminated quoted string", m);
-    return KeyValue.makeStringKey(remove_escaping(m.group(1)));
+    return KeyValue.makeStringKey(remove_escaping(m.group()));
   }
 
-  static KeyValue parse_keyevent_keydef(Matcher m) throws ParseError
+  static KeyValue parse_keyevent_keydef(Scanner m) throws ParseError
   {
-    if (!match(m, WORD_PAT))
+    if (!m.word_or_char())
       parseError("Expected keyevent code", m);
     int eventcode = 0;
-    try { eventcode = Integer.parseInt(m.group(0)); }
+    try { eventcode = Integer.parseInt(m.token()); }
     catch (Exception _e)
     { parseError("Expected an integer payload", m); }
     return KeyValue.keyeventKey("", eventcode, 0);
   }
 
   /** Returns [true] if the next token is a comma, [false] if it is the end of the input. Throws an error otherwise. */
-  static boolean parse_comma(Matcher m) throws ParseError
+  static boolean parse_comma(Scanner m) throws ParseError
   {
-    if (!match(m, KEYDEF_TOKEN))
+    int token = m.keydef_token();
+    if (token == Scanner.TOKEN_NONE)
       return false;
-    String token = m.group(0);
-    if (!token.equals(","))
-      parseError("Expected comma instead of '"+ token + "'", m);
+    if (token != Scanner.TOKEN_COMMA)
+      parseError("Expected comma instead of '"+ m.token() + "'", m);
     return true;
   }
 
   static String remove_escaping(String s)
   {
-    if (!s.contains("\\"))
+    if (s.indexOf('\\') < 0)
       return s;
     final int len = s.length();
     StringBuilder out = new StringBuilder(len);
@@ -139,28 +122,21 @@ public final class KeyValueParser
     */
   final static class Starting_with_colon
   {
-    static Pattern START_PAT;
-    static Pattern ATTR_PAT;
-    static Pattern QUOTED_PAT;
-    static Pattern PAYLOAD_START_PAT;
-    static Pattern WORD_PAT;
-
     static public KeyValue parse(String str) throws ParseError
     {
       String symbol = null;
       int flags = 0;
-      init();
       // Kind
-      Matcher m = START_PAT.matcher(str);
-      if (!m.lookingAt())
+      Scanner m = new Scanner(str, 0);
+      if (!m.kind())
         parseError("Expected kind, for example \":str ...\".", m);
-      String kind = m.group(1);
+      String kind = m.group();
       // Attributes
       while (true)
       {
-        if (!match(m, ATTR_PAT))
+        if (!m.attribute())
           break;
-        String attr_name = m.group(1);
+        String attr_name = m.group();
         String attr_value = parseSingleQuotedString(m);
         switch (attr_name)
         {
@@ -176,7 +152,7 @@ public final class KeyValueParser
         }
       }
       // Payload
-      if (!match(m, PAYLOAD_START_PAT))
+      if (!m.payload_start())
         parseError("Unexpected character", m);
       String payload;
       switch (kind)
@@ -209,21 +185,20 @@ public final class KeyValueParser
       return null; // Unreachable
     }
 
-    static String parseSingleQuotedString(Matcher m) throws ParseError
+    static String parseSingleQuotedString(Scanner m) throws ParseError
     {
-      if (!match(m, QUOTED_PAT))
+      if (!m.old_quoted())
         parseError("Expected quoted string", m);
-      return m.group(1).replace("\\'", "'");
+      return m.group().replace("\\'", "'");
     }
 
-    static String parsePayloadWord(Matcher m) throws ParseError
+    static String parsePayloadWord(Scanner m) throws ParseError
     {
-      if (!match(m, WORD_PAT))
-        parseError("Expected a word after ':' made of [a-zA-Z0-9_]", m);
-      return m.group(0);
+      m.word();
+      return m.token();
     }
 
-    static int parseFlags(String s, Matcher m) throws ParseError
+    static int parseFlags(String s, Scanner m) throws ParseError
     {
       int flags = 0;
       for (String f : s.split(","))
@@ -237,45 +212,278 @@ public final class KeyValueParser
       }
       return flags;
     }
+  }
 
-    static boolean match(Matcher m, Pattern pat)
+  /** Match tokens one after the other. A token starts where the previous
+      successfully matched token ended. If a match fails, the next match is
+      tried at the same position.
+      Tokens used to be matched with regexes, the regex they replace is given
+      for each method. */
+  static final class Scanner
+  {
+    static final int TOKEN_NONE = 0;
+    static final int TOKEN_QUOTE = 1;
+    static final int TOKEN_COMMA = 2;
+    static final int TOKEN_KEYEVENT = 3;
+    static final int TOKEN_KEYDEF = 4;
+
+    final String _s;
+    final int _len;
+    /** Start of the current token or of the token being matched. */
+    int _pos;
+    /** End of the current token or [-1] if the last match failed. */
+    int _end = -1;
+    int _group_start;
+    int _group_end;
+
+    public Scanner(String s, int pos)
     {
-      try { m.region(m.end(), m.regionEnd()); } catch (Exception _e) {}
-      m.usePattern(pat);
-      return m.lookingAt();
+      _s = s;
+      _len = s.length();
+      _pos = pos;
     }
 
-    static void init()
+    /** Text of the last matched token. */
+    public String token()
     {
-      if (START_PAT != null)
-        return;
-      START_PAT = Pattern.compile(":(\\w+)");
-      ATTR_PAT = Pattern.compile("\\s*(\\w+)\\s*=");
-      QUOTED_PAT = Pattern.compile("'(([^'\\\\]+|\\\\')*)'");
-      PAYLOAD_START_PAT = Pattern.compile("\\s*:");
-      WORD_PAT = Pattern.compile("[a-zA-Z0-9_]*");
+      return _s.substring(_pos, _end);
     }
-  }
 
-  static boolean match(Matcher m, Pattern pat)
-  {
-    try { m.region(m.end(), m.regionEnd()); } catch (Exception _e) {}
-    m.usePattern(pat);
-    return m.lookingAt();
+    /** Text of the group in the last matched token. */
+    public String group()
+    {
+      return _s.substring(_group_start, _group_end);
+    }
+
+    /** [null] if the last match failed. */
+    String last_match()
+    {
+      return (_end < 0) ? null : token();
+    }
+
+    /** Start matching a new token. Returns its starting position. */
+    int start()
+    {
+      if (_end >= 0)
+        _pos = _end;
+      _end = -1;
+      return _pos;
+    }
+
+    boolean matched(int end)
+    {
+      _end = end;
+      return true;
+    }
+
+    /** ['|,|keyevent:|(?:[^\\',]+|\\.)+] */
+    public int keydef_token()
+    {
+      int i = start();
+      if (i >= _len)
+        return TOKEN_NONE;
+      switch (_s.charAt(i))
+      {
+        case '\'': matched(i + 1); return TOKEN_QUOTE;
+        case ',': matched(i + 1); return TOKEN_COMMA;
+      }
+      if (_s.startsWith("keyevent:", i))
+      {
+        matched(i + 9);
+        return TOKEN_KEYEVENT;
+      }
+      int j = i;
+      while (j < _len)
+      {
+        char c = _s.charAt(j);
+        if (c == '\\')
+        {
+          if (!is_escapable(j + 1))
+            break;
+          j += 2;
+        }
+        else if (c == '\'' || c == ',')
+          break;
+        else
+          j++;
+      }
+      if (j == i)
+        return TOKEN_NONE;
+      matched(j);
+      return TOKEN_KEYDEF;
+    }
+
+    /** [((?:[^'\\]+|\\.)*)'], the opening quote is already matched. */
+    public boolean quoted()
+    {
+      int i = start();
+      int j = i;
+      while (j < _len)
+      {
+        char c = _s.charAt(j);
+        if (c == '\'')
+        {
+          _group_start = i;
+          _group_end = j;
+          return matched(j + 1);
+        }
+        if (c == '\\')
+        {
+          if (!is_escapable(j + 1))
+            return false;
+          j += 2;
+        }
+        else
+          j++;
+      }
+      return false;
+    }
+
+    /** [[a-zA-Z0-9_]+|.] */
+    public boolean word_or_char()
+    {
+      int i = start();
+      int j = skip_word(i);
+      if (j > i)
+        return matched(j);
+      if (!is_escapable(i))
+        return false;
+      return matched(i + Character.charCount(_s.codePointAt(i)));
+    }
+
+    /** [[a-zA-Z0-9_]*], always match. */
+    public boolean word()
+    {
+      int i = start();
+      return matched(skip_word(i));
+    }
+
+    /** [:(\w+)] */
+    public boolean kind()
+    {
+      int i = start();
+      if (i >= _len || _s.charAt(i) != ':')
+        return false;
+      int j = skip_word(i + 1);
+      if (j == i + 1)
+        return false;
+      _group_start = i + 1;
+      _group_end = j;
+      return matched(j);
+    }
+
+    /** [\s*(\w+)\s*=] */
+    public boolean attribute()
+    {
+      int i = skip_spaces(start());
+      int j = skip_word(i);
+      if (j == i)
+        return false;
+      int k = skip_spaces(j);
+      if (k >= _len || _s.charAt(k) != '=')
+        return false;
+      _group_start = i;
+      _group_end = j;
+      return matched(k + 1);
+    }
+
+    /** ['(([^'\\]+|\\')*)'] */
+    public boolean old_quoted()
+    {
+      int i = start();
+      if (i >= _len || _s.charAt(i) != '\'')
+        return false;
+      int j = i + 1;
+      while (j < _len)
+      {
+        char c = _s.charAt(j);
+        if (c == '\'')
+        {
+          _group_start = i + 1;
+          _group_end = j;
+          return matched(j + 1);
+        }
+        if (c == '\\')
+        {
+          if (j + 1 >= _len || _s.charAt(j + 1) != '\'')
+            return false;
+          j += 2;
+        }
+        else
+          j++;
+      }
+      return false;
+    }
+
+    /** [\s*:] */
+    public boolean payload_start()
+    {
+      int i = skip_spaces(start());
+      if (i >= _len || _s.charAt(i) != ':')
+        return false;
+      return matched(i + 1);
+    }
+
+    int skip_word(int i)
+    {
+      while (i < _len && is_word_char(_s.charAt(i)))
+        i++;
+      return i;
+    }
+
+    int skip_spaces(int i)
+    {
+      while (i < _len && is_space(_s.charAt(i)))
+        i++;
+      return i;
+    }
+
+    /** Whether there's a character at [i] that is matched by the regex
+        [.], which doesn't match line terminators. */
+    boolean is_escapable(int i)
+    {
+      if (i >= _len)
+        return false;
+      switch (_s.charAt(i))
+      {
+        case '\n': case '\r': case '\u0085': case '\u2028': case '\u2029':
+          return false;
+        default: return true;
+      }
+    }
+
+    /** [\w] */
+    static boolean is_word_char(char c)
+    {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /** [\s] */
+    static boolean is_space(char c)
+    {
+      switch (c)
+      {
+        case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+          return true;
+        default: return false;
+      }
+    }
   }
 
-  static void parseError(String msg, Matcher m) throws ParseError
+  static void parseError(String msg, Scanner m) throws ParseError
   {
-    parseError(msg, m, m.regionStart());
+    parseError(msg, m, m._pos);
   }
 
-  static void parseError(String msg, Matcher m, int i) throws ParseError
+  static void parseError(String msg, Scanner m, int i) throws ParseError
   {
     StringBuilder msg_ = new StringBuilder("Syntax error");
-    try
-    {
-      msg_.append(" at token '").append(m.group(0)).append("'");
-    } catch (IllegalStateException _e) {}
+    // Only the opening quote is written if the last match failed.
+    msg_.append(" at token '");
+    String token = m.last_match();
+    if (token != null)
+      msg_.append(token).append("'");
     msg_.append(" at position ");
     msg_.append(i);
     msg_.append(": ");
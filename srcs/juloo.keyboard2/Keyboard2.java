@@ -62,6 +62,12 @@ public class Keyboard2 extends InputMethodService
   {
     if (_currentSpecialLayout != null)
       return _currentSpecialLayout;
+    return current_text_layout();
+  }
+
+  /** The selected text layout, even if a special layout is visible. */
+  KeyboardData current_text_layout()
+  {
     KeyboardData layout = null;
     int layout_i = _config.get_current_layout();
     if (layout_i >= _config.layouts.size())
@@ -135,11 +141,12 @@ public class Keyboard2 extends InputMethodService
     _handler = new Handler(getMainLooper());
     _foldStateTracker = new FoldStateTracker(this);
     _dictionaries = Dictionaries.instance(this);
+    ComposeKey.init(getResources());
     Config.initGlobalConfig(prefs, getResources(),
         _foldStateTracker.isUnfolded(), _dictionaries);
     _config = Config.globalConfig();
     Receiver recvr = this.new Receiver();
-    _suggestions = new Suggestions(recvr, _config);
+    _suggestions = new Suggestions(_handler, recvr, _config);
     _keyeventhandler = new KeyEventHandler(recvr, _suggestions);
     KeyValue.Stateful._handler = recvr;
     _config.handler = _keyeventhandler;
@@ -149,6 +156,7 @@ public class Keyboard2 extends InputMethodService
     create_keyboard_view();
     ClipboardHistoryService.on_startup(this, _keyeventhandler);
     _foldStateTracker.setChangedCallback(() -> { refresh_config(); });
+    LayoutsWarmup.start(getResources(), _handler);
   }
 
   @Override
@@ -156,6 +164,15 @@ public class Keyboard2 extends InputMethodService
     super.onDestroy();
 
     _foldStateTracker.close();
+    _suggestions.destroy();
+  }
+
+  @Override
+  public void onTrimMemory(int level)
+  {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_RUNNING_LOW)
+      _dictionaries.trim_memory();
   }
 
   private void create_keyboard_view()
@@ -228,20 +245,28 @@ public class Keyboard2 extends InputMethodService
   private void refresh_config()
   {
     int prev_theme = _config.theme;
-    _config.refresh(getResources(), _foldStateTracker.isUnfolded(), _dictionaries);
-    refresh_current_dictionary();
-    // Refreshing the theme config requires re-creating the views
-    if (prev_theme != _config.theme)
+    // Only the preferences reported to [onSharedPreferenceChanged] are
+    // reloaded, this is cheap when nothing changed.
+    if (_config.refresh(getResources(), _foldStateTracker.isUnfolded(), _dictionaries))
     {
-      create_keyboard_view();
-      _emojiPane = null;
-      _clipboard_pane = null;
-      setInputView(_keyboard_container_view);
+      LatencyTrace.set_enabled(_config.latency_trace);
+      // Refreshing the theme config requires re-creating the views
+      if (prev_theme != _config.theme)
+      {
+        create_keyboard_view();
+        _emojiPane = null;
+        _clipboard_pane = null;
+        setInputView(_keyboard_container_view);
+      }
+      // Set keyboard background opacity
+      Drawable bg = _keyboard_container_view.getBackground().mutate();
+      bg.setAlpha(_config.keyboardOpacity);
+      _keyboard_container_view.setBackground(bg);
     }
-    // Set keyboard background opacity
-    Drawable bg = _keyboard_container_view.getBackground().mutate();
-    bg.setAlpha(_config.keyboardOpacity);
-    _keyboard_container_view.setBackground(bg);
+    // Dictionaries installed or removed from [DictionariesActivity] are not
+    // reported as a preference change. This is a cache hit when the current
+    // dictionary didn't change.
+    refresh_current_dictionary();
     _keyboard_layout_view.reset();
     refresh_candidates_view();
   }
@@ -272,8 +297,26 @@ public class Keyboard2 extends InputMethodService
     _keyeventhandler.started(_config);
     setInputView(_keyboard_container_view);
     Logs.debug_startup_input_view(info, _config);
+    _handler.removeCallbacks(_prepare_layouts);
+    _handler.post(_prepare_layouts);
   }
 
+  /** Modify the other enabled layouts for the current editor in the
+      background after the keyboard is shown, so that switching layouts
+      doesn't block. */
+  final Runnable _prepare_layouts = new Runnable()
+  {
+    public void run()
+    {
+      if (_config.layouts.size() >= LayoutModifier.CACHE_SIZE)
+        return;
+      List<KeyboardData> layouts = new ArrayList<KeyboardData>();
+      for (KeyboardData l : _config.layouts)
+        layouts.add((l == null) ? _localeTextLayout : l);
+      LayoutsWarmup.modify_layouts(layouts, _handler);
+    }
+  };
+
   @Override
   public void setInputView(View v)
   {
@@ -375,8 +418,9 @@ public class Keyboard2 extends InputMethodService
   }
 
   @Override
-  public void onSharedPreferenceChanged(SharedPreferences _prefs, String _key)
+  public void onSharedPreferenceChanged(SharedPreferences _prefs, String key)
   {
+    _config.pref_changed(key);
     refresh_config();
     _keyboard_layout_view.setKeyboard(current_layout());
   }
@@ -551,6 +595,11 @@ public class Keyboard2 extends InputMethodService
       _candidates_view.set_candidates(suggestions);
     }
 
+    public KeyboardData current_text_layout()
+    {
+      return Keyboard2.this.current_text_layout();
+    }
+
     public String provide_stateful_key_symbol(KeyValue.Stateful q)
     {
       switch (q)
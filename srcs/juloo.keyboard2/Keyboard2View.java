@@ -2,11 +2,14 @@ package juloo.keyboard2;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Insets;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.inputmethodservice.InputMethodService;
 import android.os.Build.VERSION;
 import android.util.AttributeSet;
@@ -36,6 +39,11 @@ public class Keyboard2View extends View
 
   private Pointers.Modifiers _mods;
 
+  /** Labels of the current layout, memoized per set of modifiers. */
+  private ModifiedLabels _labels;
+  /** Labels modified by [_mods]. See [ModifiedLabels.get]. */
+  private KeyValue[] _current_labels;
+
   private static int _currentWhat = 0;
 
   private Config _config;
@@ -53,7 +61,27 @@ public class Keyboard2View extends View
   private Theme _theme;
   private Theme.Computed _tc;
 
+  /** Computed in [onMeasure]. */
+  private KeyHitIndex _hit_index;
+
+  /** State of each keys, in the same order as [ModifiedLabels], when the
+      view was last invalidated. See [key_state]. [null] when the whole view
+      must be redrawn. */
+  private int[] _invalidated_states = null;
+  /** Value of [_current_labels] when the view was last invalidated. */
+  private KeyValue[] _invalidated_labels = null;
+
+  private FrameCost _frame_cost = new FrameCost();
+
+  /** Cached drawing of the keys in their unpressed state. Used when
+      [Config.static_layer_rendering] is enabled. See [drawStaticLayer]. */
+  private Bitmap _layer = null;
+  /** Labels drawn into [_layer]. [null] when the layer must be recorded
+      again. */
+  private KeyValue[] _layer_labels = null;
+
   private static RectF _tmpRect = new RectF();
+  private static Rect _clip_rect = new Rect();
 
   enum Vertical
   {
@@ -110,14 +138,20 @@ public class Keyboard2View extends View
     _shift_key = _keyboard.findKeyWithValue(KeyValue.SHIFT);
     _compose_key = _keyboard.findKeyWithValue(KeyValue.COMPOSE);
     KeyModifier.set_modmap(_keyboard.modmap);
+    _pointers.set_keyboard(_keyboard);
+    _labels = new ModifiedLabels(_keyboard);
+    _current_labels = null;
+    _hit_index = null;
     reset();
   }
 
   public void reset()
   {
-    _mods = Pointers.Modifiers.EMPTY;
+    set_mods(Pointers.Modifiers.EMPTY);
     _pointers.clear();
     requestLayout();
+    invalidateStaticLayer();
+    _invalidated_states = null;
     invalidate();
   }
 
@@ -151,14 +185,19 @@ public class Keyboard2View extends View
 
   public KeyValue modifyKey(KeyValue k, Pointers.Modifiers mods)
   {
-    return KeyModifier.modify(k, mods);
+    if (!LatencyTrace.enabled)
+      return KeyModifier.modify(k, mods);
+    long t = LatencyTrace.start();
+    KeyValue r = KeyModifier.modify(k, mods);
+    LatencyTrace.end(LatencyTrace.MODIFY, t);
+    return r;
   }
 
   public void onPointerDown(KeyValue k, boolean isSwipe)
   {
     updateFlags();
     _config.handler.key_down(k, isSwipe);
-    invalidate();
+    invalidate_changed_keys();
     vibrate();
   }
 
@@ -168,7 +207,7 @@ public class Keyboard2View extends View
     // flags.
     _config.handler.key_up(k, mods);
     updateFlags();
-    invalidate();
+    invalidate_changed_keys();
   }
 
   public void onPointerHold(KeyValue k, Pointers.Modifiers mods)
@@ -177,22 +216,103 @@ public class Keyboard2View extends View
     updateFlags();
   }
 
+  public void onPointerRetract(KeyValue k)
+  {
+    _config.handler.key_retract(k);
+  }
+
   public void onPointerFlagsChanged(boolean shouldVibrate)
   {
     updateFlags();
-    invalidate();
+    invalidate_changed_keys();
     if (shouldVibrate)
       vibrate();
   }
 
   private void updateFlags()
   {
-    _mods = _pointers.getModifiers();
+    set_mods(_pointers.getModifiers());
     _config.handler.mods_changed(_mods);
   }
 
+  private void set_mods(Pointers.Modifiers mods)
+  {
+    if (_current_labels != null && mods.equals(_mods))
+      return;
+    _mods = mods;
+    _current_labels = (_labels == null) ? null : _labels.get(mods);
+  }
+
+  /** Invalidate the area of the keys that are drawn differently since the
+      last call. The whole view is invalidated if the labels changed. */
+  private void invalidate_changed_keys()
+  {
+    KeyValue[] labels = _current_labels;
+    if (labels != _invalidated_labels)
+    {
+      // Different modifiers might not change any label.
+      boolean same_labels = Arrays.equals(labels, _invalidated_labels);
+      _invalidated_labels = labels;
+      if (!same_labels)
+        _invalidated_states = null;
+    }
+    int[] states = _invalidated_states;
+    if (_hit_index == null || labels == null || states == null)
+    {
+      invalidate();
+      return;
+    }
+    int key_i = 0;
+    for (int r = 0; r < _keyboard.rows.size(); r++)
+    {
+      List<KeyboardData.Key> keys = _keyboard.rows.get(r).keys;
+      for (int k = 0; k < keys.size(); k++)
+      {
+        int st = key_state(labels, key_i * 9);
+        if (st != states[key_i])
+        {
+          states[key_i] = st;
+          invalidate((int)_hit_index.key_left(r, k), (int)_hit_index.key_top(r),
+              (int)Math.ceil(_hit_index.key_right(r, k)),
+              (int)Math.ceil(_hit_index.key_bottom(r)));
+        }
+        key_i++;
+      }
+    }
+  }
+
+  /** Summarize the pointer state of a key as drawn by [onDraw]. The
+      [labelColor] of each labels is encoded on two bits. */
+  private int key_state(KeyValue[] labels, int label_i)
+  {
+    if (!_pointers.isKeyDown(label_i / 9))
+      return 0;
+    int st = 1;
+    for (int i = 0; i < 9; i++)
+    {
+      KeyValue kv = labels[label_i + i];
+      if (kv == null)
+        continue;
+      int flags = _pointers.getKeyFlags(kv);
+      int s = (flags == -1) ? 0 : ((flags & Pointers.FLAG_P_LOCKED) != 0) ? 2 : 1;
+      st |= s << (1 + i * 2);
+    }
+    return st;
+  }
+
   @Override
   public boolean onTouch(View v, MotionEvent event)
+  {
+    if (!LatencyTrace.enabled)
+      return handle_touch(event);
+    LatencyTrace.touch_event(event.getEventTime());
+    long t = LatencyTrace.start();
+    boolean handled = handle_touch(event);
+    LatencyTrace.end(LatencyTrace.POINTERS, t);
+    return handled;
+  }
+
+  boolean handle_touch(MotionEvent event)
   {
     int p;
     switch (event.getActionMasked())
@@ -211,8 +331,18 @@ public class Keyboard2View extends View
           _pointers.onTouchDown(tx, ty, event.getPointerId(p), key);
         break;
       case MotionEvent.ACTION_MOVE:
+        // Move events are batched, historical samples improve the precision
+        // of gestures and sliders.
+        int history = event.getHistorySize();
         for (p = 0; p < event.getPointerCount(); p++)
-          _pointers.onTouchMove(event.getX(p), event.getY(p), event.getPointerId(p));
+        {
+          int id = event.getPointerId(p);
+          for (int h = 0; h < history; h++)
+            _pointers.onTouchMove(event.getHistoricalX(p, h),
+                event.getHistoricalY(p, h), id, event.getHistoricalEventTime(h));
+          _pointers.onTouchMove(event.getX(p), event.getY(p), id,
+              event.getEventTime());
+        }
         break;
       case MotionEvent.ACTION_CANCEL:
         _pointers.onTouchCancel();
@@ -223,37 +353,18 @@ public class Keyboard2View extends View
     return (true);
   }
 
-  private KeyboardData.Row getRowAtPosition(float ty)
+  private KeyboardData.Key getKeyAtPosition(float tx, float ty)
   {
-    float y = _config.marginTop;
-    if (ty < y)
+    if (_hit_index == null)
       return null;
-    for (KeyboardData.Row row : _keyboard.rows)
-    {
-      y += (row.shift + row.height) * _tc.row_height;
-      if (ty < y)
-        return row;
-    }
-    return null;
+    return _hit_index.key_at(tx, ty);
   }
 
-  private KeyboardData.Key getKeyAtPosition(float tx, float ty)
+  /** The geometry of the keys, as last measured. [null] before the first
+      [onMeasure]. */
+  public KeyHitIndex get_hit_index()
   {
-    KeyboardData.Row row = getRowAtPosition(ty);
-    float x = _marginLeft;
-    if (row == null || tx < x)
-      return null;
-    for (KeyboardData.Key key : row.keys)
-    {
-      float xLeft = x + key.shift * _keyWidth;
-      float xRight = xLeft + key.width * _keyWidth;
-      if (tx < xLeft)
-        return null;
-      if (tx < xRight)
-        return key;
-      x = xRight;
-    }
-    return null;
+    return _hit_index;
   }
 
   private void vibrate()
@@ -271,6 +382,9 @@ public class Keyboard2View extends View
     _marginBottom = _config.margin_bottom + _insets_bottom;
     _keyWidth = (width - _marginLeft - _marginRight) / _keyboard.keysWidth;
     _tc = new Theme.Computed(_theme, _config, _keyWidth, _keyboard);
+    _hit_index = new KeyHitIndex(_keyboard, _marginLeft, _config.marginTop,
+        _keyWidth, _tc.row_height);
+    invalidateStaticLayer();
     // Compute the size of labels based on the width or the height of keys. The
     // margin around keys is taken into account. Keys normal aspect ratio is
     // assumed to be 3/2 for a 10 columns layout. It's generally more, the
@@ -337,51 +451,193 @@ public class Keyboard2View extends View
     Vertical.BOTTOM
   };
 
+  /** Modes for [draw_keys]. */
+  static final int DRAW_ALL = 0;
+  /** Draw the keys that are not pressed, as if no key was pressed. Used to
+      record [_layer]. */
+  static final int DRAW_STATIC = 1;
+  /** Draw the keys that are not part of [_layer]. */
+  static final int DRAW_DYNAMIC = 2;
+
   @Override
   protected void onDraw(Canvas canvas)
   {
+    long start_ns = System.nanoTime();
+    // Keys are not drawn outside of the invalidated area.
+    boolean full_redraw = !canvas.getClipBounds(_clip_rect)
+      || (_clip_rect.left <= 0 && _clip_rect.top <= 0
+          && _clip_rect.right >= getWidth() && _clip_rect.bottom >= getHeight());
+    int drawn;
+    if (_config.static_layer_rendering && _hit_index != null
+        && getWidth() > 0 && getHeight() > 0)
+    {
+      drawStaticLayer(canvas);
+      drawn = draw_keys(canvas, DRAW_DYNAMIC, full_redraw);
+    }
+    else
+    {
+      recycleStaticLayer();
+      drawn = draw_keys(canvas, DRAW_ALL, full_redraw);
+    }
+    _frame_cost.record(System.nanoTime() - start_ns, drawn);
+  }
+
+  /** Draw the keys selected by [mode]. Returns the number of keys drawn. */
+  private int draw_keys(Canvas canvas, int mode, boolean full_redraw)
+  {
+    int drawn = 0;
+    KeyValue[] labels = _current_labels;
+    int label_i = 0;
+    // The state of every keys is recorded when the whole view is redrawn.
+    int[] states = null;
+    if (mode != DRAW_STATIC && full_redraw && labels == _invalidated_labels
+        && _hit_index != null)
+    {
+      states = _invalidated_states;
+      if (states == null || states.length != labels.length / 9)
+        states = _invalidated_states = new int[labels.length / 9];
+    }
     float y = _tc.margin_top;
-    for (KeyboardData.Row row : _keyboard.rows)
+    // Lists are not iterated with iterators to avoid allocating.
+    List<KeyboardData.Row> rows = _keyboard.rows;
+    for (int r = 0; r < rows.size(); r++)
     {
+      KeyboardData.Row row = rows.get(r);
       y += row.shift * _tc.row_height;
       float x = _marginLeft + _tc.margin_left;
       float keyH = row.height * _tc.row_height - _tc.vertical_margin;
-      for (KeyboardData.Key k : row.keys)
+      for (int ki = 0; ki < row.keys.size(); ki++)
       {
+        KeyboardData.Key k = row.keys.get(ki);
         x += k.shift * _keyWidth;
         float keyW = _keyWidth * k.width - _tc.horizontal_margin;
-        boolean isKeyDown = _pointers.isKeyDown(k);
-        Theme.Computed.Key tc_key;
-        if (isKeyDown)
-          tc_key = _tc.key_activated;
+        boolean isKeyDown = (mode != DRAW_STATIC) && _pointers.isKeyDown(label_i / 9);
+        boolean skip;
+        if (!full_redraw && (x > _clip_rect.right || x + keyW < _clip_rect.left
+              || y > _clip_rect.bottom || y + keyH < _clip_rect.top))
+          skip = true;
+        else if (mode == DRAW_STATIC)
+          skip = has_stateful_label(labels, label_i);
+        else if (mode == DRAW_DYNAMIC)
+          skip = !isKeyDown && !has_stateful_label(labels, label_i);
         else
-          switch (k.role)
-          {
-            case Action: tc_key = _tc.key_action; break;
-            case Space_bar: tc_key = _tc.key_space_bar; break;
-            case Suggestion: tc_key = _tc.key_suggestion; break;
-            default:
-            case Normal: tc_key = _tc.key; break;
-          }
-        drawKeyFrame(canvas, x, y, keyW, keyH, tc_key);
-        if (k.keys[0] != null)
-          drawLabel(canvas, k.keys[0], keyW / 2f + x, y, keyH, isKeyDown, tc_key);
-        for (int i = 1; i < 9; i++)
+          skip = false;
+        if (states != null)
+          states[label_i / 9] = key_state(labels, label_i);
+        if (!skip)
         {
-          if (k.keys[i] != null)
-            drawSubLabel(canvas, k.keys[i], x, y, keyW, keyH, i, isKeyDown, tc_key);
+          drawn++;
+          drawKey(canvas, k, labels, label_i, x, y, keyW, keyH, isKeyDown);
         }
-        drawIndication(canvas, k, x, y, keyW, keyH, _tc);
         x += _keyWidth * k.width;
+        label_i += 9;
       }
       y += row.height * _tc.row_height;
     }
+    return drawn;
+  }
+
+  private void drawKey(Canvas canvas, KeyboardData.Key k, KeyValue[] labels,
+      int label_i, float x, float y, float keyW, float keyH, boolean isKeyDown)
+  {
+    Theme.Computed.Key tc_key;
+    if (isKeyDown)
+      tc_key = _tc.key_activated;
+    else
+      switch (k.role)
+      {
+        case Action: tc_key = _tc.key_action; break;
+        case Space_bar: tc_key = _tc.key_space_bar; break;
+        case Suggestion: tc_key = _tc.key_suggestion; break;
+        default:
+        case Normal: tc_key = _tc.key; break;
+      }
+    drawKeyFrame(canvas, x, y, keyW, keyH, tc_key);
+    if (labels[label_i] != null)
+      drawLabel(canvas, labels[label_i], keyW / 2f + x, y, keyH, isKeyDown, tc_key);
+    for (int i = 1; i < 9; i++)
+    {
+      if (labels[label_i + i] != null)
+        drawSubLabel(canvas, labels[label_i + i], x, y, keyW, keyH, i, isKeyDown, tc_key);
+    }
+    drawIndication(canvas, k, x, y, keyW, keyH, _tc);
+  }
+
+  /** The symbol of stateful keys can change at any time, these keys are not
+      part of [_layer]. */
+  private static boolean has_stateful_label(KeyValue[] labels, int label_i)
+  {
+    for (int i = 0; i < 9; i++)
+    {
+      KeyValue kv = labels[label_i + i];
+      if (kv != null && kv.getKind() == KeyValue.Kind.Stateful)
+        return true;
+    }
+    return false;
+  }
+
+  /** Draw the cached static layer, recording it first if needed. The pressed
+      keys are excluded, they are drawn on top with a different frame. */
+  private void drawStaticLayer(Canvas canvas)
+  {
+    int w = getWidth();
+    int h = getHeight();
+    if (_layer == null || _layer.getWidth() != w || _layer.getHeight() != h)
+    {
+      if (_layer != null)
+        _layer.recycle();
+      _layer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      _layer_labels = null;
+    }
+    if (_layer_labels != _current_labels)
+    {
+      _layer.eraseColor(Color.TRANSPARENT);
+      draw_keys(new Canvas(_layer), DRAW_STATIC, true);
+      _layer_labels = _current_labels;
+    }
+    canvas.save();
+    int key_i = 0;
+    for (int r = 0; r < _keyboard.rows.size(); r++)
+    {
+      int nkeys = _keyboard.rows.get(r).keys.size();
+      for (int k = 0; k < nkeys; k++, key_i++)
+      {
+        if (!_pointers.isKeyDown(key_i))
+          continue;
+        float left = _hit_index.key_left(r, k);
+        float top = _hit_index.key_top(r);
+        float right = _hit_index.key_right(r, k);
+        float bottom = _hit_index.key_bottom(r);
+        if (VERSION.SDK_INT >= 26)
+          canvas.clipOutRect(left, top, right, bottom);
+        else
+          canvas.clipRect(left, top, right, bottom, Region.Op.DIFFERENCE);
+      }
+    }
+    canvas.drawBitmap(_layer, 0.f, 0.f, null);
+    canvas.restore();
+  }
+
+  /** Must be called when the geometry, the layout or the theme changes. */
+  private void invalidateStaticLayer()
+  {
+    _layer_labels = null;
+  }
+
+  private void recycleStaticLayer()
+  {
+    if (_layer == null)
+      return;
+    _layer.recycle();
+    _layer = null;
+    _layer_labels = null;
   }
 
   @Override
   public void onDetachedFromWindow()
   {
     super.onDetachedFromWindow();
+    recycleStaticLayer();
   }
 
   /** Draw borders and background of the key. */
@@ -440,9 +696,6 @@ public class Keyboard2View extends View
   private void drawLabel(Canvas canvas, KeyValue kv, float x, float y,
       float keyH, boolean isKeyDown, Theme.Computed.Key tc)
   {
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
     float textSize = scaleTextSize(kv, true);
     Paint p = tc.label_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, false), textSize);
     canvas.drawText(kv.getString(), x, (keyH - p.ascent() - p.descent()) / 2f + y, p);
@@ -454,9 +707,6 @@ public class Keyboard2View extends View
   {
     Paint.Align a = LABEL_POSITION_H[sub_index];
     Vertical v = LABEL_POSITION_V[sub_index];
-    kv = modifyKey(kv, _mods);
-    if (kv == null)
-      return;
     float textSize = scaleTextSize(kv, false);
     Paint p = tc.sublabel_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, true), textSize, a);
     float subPadding = _config.keyPadding;
@@ -493,4 +743,35 @@ public class Keyboard2View extends View
     float label_size = main_label ? _mainLabelSize : _subLabelSize;
     return label_size * smaller_font;
   }
+
+  /** Count the time spent in [onDraw] and the number of keys drawn. The
+      averages are logged every [FRAMES_PER_REPORT] frames when debug logs
+      are enabled. */
+  static final class FrameCost
+  {
+    static final int FRAMES_PER_REPORT = 100;
+
+    int frames = 0;
+    long total_ns = 0;
+    long max_ns = 0;
+    long keys_drawn = 0;
+
+    public void record(long ns, int keys)
+    {
+      frames++;
+      total_ns += ns;
+      keys_drawn += keys;
+      if (ns > max_ns)
+        max_ns = ns;
+      if (frames < FRAMES_PER_REPORT)
+        return;
+      Logs.debug("onDraw: " + frames + " frames, average "
+          + (total_ns / frames / 1000) + "us, max " + (max_ns / 1000)
+          + "us, " + (keys_drawn / frames) + " keys per frame");
+      frames = 0;
+      total_ns = 0;
+      max_ns = 0;
+      keys_drawn = 0;
+    }
+  }
 }
@@ -36,7 +36,7 @@ public final class KeyboardData
   /** Whether extra keys from [method.xml] should be added to this layout. */
   public final boolean locale_extra_keys;
   /** Position of every keys on the layout, see [getKeys()]. */
-  private Map<KeyValue, KeyPos> _key_pos = null;
+  private volatile Map<KeyValue, KeyPos> _key_pos = null;
 
   public KeyboardData mapKeys(MapKey f)
   {
@@ -163,28 +163,38 @@ public final class KeyboardData
     return rows.get(pos.row).get_key_at_pos(pos);
   }
 
-  /** This is computed once and cached. */
+  /** This is computed once and cached. Layouts are modified on several
+      threads, racing calls compute equal maps. */
   public Map<KeyValue, KeyPos> getKeys()
   {
-    if (_key_pos == null)
+    Map<KeyValue, KeyPos> key_pos = _key_pos;
+    if (key_pos == null)
     {
-      _key_pos = new HashMap<KeyValue, KeyPos>();
+      key_pos = new HashMap<KeyValue, KeyPos>();
       for (int r = 0; r < rows.size(); r++)
-        rows.get(r).getKeys(_key_pos, r);
+        rows.get(r).getKeys(key_pos, r);
+      _key_pos = key_pos;
     }
-    return _key_pos;
+    return key_pos;
   }
 
   private static Map<Integer, KeyboardData> _layoutCache = new HashMap<Integer, KeyboardData>();
 
   public static Row load_row(Resources res, int res_id) throws Exception
   {
+    BinaryLayouts bin = BinaryLayouts.get(res);
+    if (bin != null)
+    {
+      Row row = bin.load_row(res.getResourceEntryName(res_id));
+      if (row != null)
+        return row;
+    }
     return parse_row(res.getXml(res_id));
   }
 
   public static KeyboardData load_num_pad(Resources res) throws Exception
   {
-    return parse_keyboard(res.getXml(R.xml.numpad));
+    return load_exn(res, R.xml.numpad);
   }
 
   /** Load a layout from a resource ID. Returns [null] on error. */
@@ -193,22 +203,55 @@ public final class KeyboardData
     if (_layoutCache.containsKey(id))
       return _layoutCache.get(id);
     KeyboardData l = null;
-    XmlResourceParser parser = null;
     try
     {
-      parser = res.getXml(id);
-      l = parse_keyboard(parser);
+      l = load_exn(res, id);
     }
     catch (Exception e)
     {
       Logs.exn("Failed to load layout id " + id, e);
     }
-    if (parser != null)
-      parser.close();
     _layoutCache.put(id, l);
     return l;
   }
 
+  /** Add a layout loaded with [load_exn] to the cache used by [load]. Must
+      be called from the main thread. */
+  static void add_to_cache(int id, KeyboardData l)
+  {
+    if (!_layoutCache.containsKey(id))
+      _layoutCache.put(id, l);
+  }
+
+  /** Load a layout from the precompiled layouts in [BinaryLayouts] or from
+      the XML resource if it's not found. Not cached, can be called from any
+      thread. */
+  static KeyboardData load_exn(Resources res, int id) throws Exception
+  {
+    BinaryLayouts bin = BinaryLayouts.get(res);
+    if (bin != null)
+    {
+      KeyboardData l = bin.load_keyboard(res.getResourceEntryName(id));
+      if (l != null)
+        return l;
+    }
+    return load_xml(res, id);
+  }
+
+  /** Load a layout by parsing the XML resource. Not cached. */
+  public static KeyboardData load_xml(Resources res, int id) throws Exception
+  {
+    XmlResourceParser parser = res.getXml(id);
+    try
+    {
+      return parse_keyboard(parser);
+    }
+    finally
+    {
+      parser.close();
+    }
+  }
+
   /** Load a layout from a string. Returns [null] on error. */
   public static KeyboardData load_string(String src)
   {
@@ -231,7 +274,7 @@ public final class KeyboardData
     return parse_keyboard(parser);
   }
 
-  private static KeyboardData parse_keyboard(XmlPullParser parser) throws Exception
+  static KeyboardData parse_keyboard(XmlPullParser parser) throws Exception
   {
     if (!expect_tag(parser, "keyboard"))
       throw error(parser, "Expected tag <keyboard>");
@@ -270,7 +313,7 @@ public final class KeyboardData
     return new KeyboardData(rows, kw, modmap, script, numpad_script, name, bottom_row, embedded_number_row, locale_extra_keys);
   }
 
-  private static float compute_max_width(List<Row> rows)
+  static float compute_max_width(List<Row> rows)
   {
     float w = 0.f;
     for (Row r : rows)
@@ -278,7 +321,7 @@ public final class KeyboardData
     return w;
   }
 
-  private static Row parse_row(XmlPullParser parser) throws Exception
+  static Row parse_row(XmlPullParser parser) throws Exception
   {
     if (!expect_tag(parser, "row"))
       throw error(parser, "Expected tag <row>");
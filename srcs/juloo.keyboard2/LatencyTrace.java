@@ -0,0 +1,203 @@
+package juloo.keyboard2;
+
+import android.os.SystemClock;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/** Measure the time spent in the phases between a touch event and the
+    resulting text or key event being sent to the editor. Enabled by the
+    "latency_trace" option. When disabled, the instrumented code only reads
+    [enabled].
+
+    Measures are written into a ring buffer of recent samples and aggregated
+    into a histogram for each phase. Measures are only written from the main
+    thread. The report can be read from an other thread, the ring buffer
+    position is published after the sample is written. */
+public final class LatencyTrace
+{
+  /** From the event time of a touch event to [Keyboard2View.onTouch]. */
+  public static final int DISPATCH = 0;
+  /** Handling of a touch event by [Pointers]. Include the phases below. */
+  public static final int POINTERS = 1;
+  public static final int MODIFY = 2;
+  public static final int KEY_UP = 3;
+  /** Calls to [InputConnection.commitText] and [sendKeyEvent]. */
+  public static final int IPC = 4;
+  /** From the keystroke that changed the typed word to the publication of
+      the suggestions computed by the worker thread of [Suggestions]. */
+  public static final int SUGGESTIONS = 5;
+  /** From the event time of a touch event to the end of the first IPC call
+      that follows. */
+  public static final int TOUCH_TO_COMMIT = 6;
+  static final int PHASE_COUNT = 7;
+
+  static final String[] PHASE_NAMES = new String[]{
+    "dispatch", "pointers", "modify", "key_up", "ipc", "suggestions",
+    "touch_to_commit"
+  };
+
+  /** Bucket [i] counts the measures between [2^(i-1)] and [2^i]
+      microseconds. The last bucket counts every longer measures. */
+  static final int BUCKET_COUNT = 24;
+
+  /** Must be a power of two. */
+  static final int RING_SIZE = 4096;
+
+  public static boolean enabled = false;
+
+  static final long[] _ring_time_ns = new long[RING_SIZE];
+  static final long[] _ring_duration_ns = new long[RING_SIZE];
+  static final byte[] _ring_phase = new byte[RING_SIZE];
+  /** Number of samples ever written. The next sample is written at
+      [_ring_pos % RING_SIZE]. */
+  static volatile long _ring_pos = 0;
+
+  static final long[][] _histograms = new long[PHASE_COUNT][BUCKET_COUNT];
+
+  /** Event time of the last touch event that hasn't been followed by an IPC
+      call yet or [-1]. */
+  static long _touch_event_time = -1;
+
+  public static void set_enabled(boolean e)
+  {
+    enabled = e;
+    _touch_event_time = -1;
+  }
+
+  /** Returns the time to pass to [end] or [0] if disabled. */
+  public static long start()
+  {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  public static void end(int phase, long start_ns)
+  {
+    if (!enabled || start_ns == 0)
+      return;
+    long now = System.nanoTime();
+    record(phase, now, now - start_ns);
+  }
+
+  /** A touch event with the given [MotionEvent.getEventTime] is being
+      dispatched. */
+  public static void touch_event(long event_time)
+  {
+    if (!enabled)
+      return;
+    _touch_event_time = event_time;
+    record(DISPATCH, System.nanoTime(),
+        (SystemClock.uptimeMillis() - event_time) * 1000000);
+  }
+
+  /** Text or a key event has been sent to the editor. */
+  public static void committed()
+  {
+    if (!enabled || _touch_event_time < 0)
+      return;
+    record(TOUCH_TO_COMMIT, System.nanoTime(),
+        (SystemClock.uptimeMillis() - _touch_event_time) * 1000000);
+    _touch_event_time = -1;
+  }
+
+  public static void reset()
+  {
+    for (int p = 0; p < PHASE_COUNT; p++)
+      for (int b = 0; b < BUCKET_COUNT; b++)
+        _histograms[p][b] = 0;
+    _ring_pos = 0;
+  }
+
+  static void record(int phase, long time_ns, long duration_ns)
+  {
+    long pos = _ring_pos;
+    int i = (int)(pos & (RING_SIZE - 1));
+    _ring_time_ns[i] = time_ns;
+    _ring_duration_ns[i] = duration_ns;
+    _ring_phase[i] = (byte)phase;
+    _ring_pos = pos + 1;
+    _histograms[phase][bucket(duration_ns)]++;
+  }
+
+  static int bucket(long duration_ns)
+  {
+    long us = duration_ns / 1000;
+    if (us <= 0)
+      return 0;
+    return Math.min(64 - Long.numberOfLeadingZeros(us), BUCKET_COUNT - 1);
+  }
+
+  /** Upper bound of bucket [b], in microseconds. */
+  static long bucket_limit(int b)
+  {
+    return 1L << b;
+  }
+
+  /** Upper bound of the bucket containing the [q] quantile of [hist]. */
+  static long quantile_us(long[] hist, long count, double q)
+  {
+    long target = (long)Math.ceil(count * q);
+    long acc = 0;
+    for (int b = 0; b < BUCKET_COUNT; b++)
+    {
+      acc += hist[b];
+      if (acc >= target)
+        return bucket_limit(b);
+    }
+    return bucket_limit(BUCKET_COUNT - 1);
+  }
+
+  /** Human readable summary of the histograms. Quantiles are rounded up to
+      a power of two microseconds. */
+  public static String report()
+  {
+    StringBuilder b = new StringBuilder();
+    b.append(enabled ? "Enabled" : "Disabled");
+    b.append(", ").append(_ring_pos).append(" samples\n");
+    for (int p = 0; p < PHASE_COUNT; p++)
+    {
+      long[] hist = _histograms[p].clone();
+      long count = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++)
+        count += hist[i];
+      b.append(PHASE_NAMES[p]).append(": ").append(count);
+      if (count > 0)
+      {
+        b.append(", p50 < ").append(quantile_us(hist, count, 0.5));
+        b.append("us, p90 < ").append(quantile_us(hist, count, 0.9));
+        b.append("us, p99 < ").append(quantile_us(hist, count, 0.99));
+        b.append("us");
+      }
+      b.append("\n");
+    }
+    return b.toString();
+  }
+
+  /** Write the report, the histograms and the recent samples. */
+  public static void export(String path) throws IOException
+  {
+    Writer out = new FileWriter(path);
+    try
+    {
+      out.write(report());
+      out.write("\nphase,bucket_limit_us,count\n");
+      for (int p = 0; p < PHASE_COUNT; p++)
+        for (int b = 0; b < BUCKET_COUNT; b++)
+          out.write(PHASE_NAMES[p] + "," + bucket_limit(b) + ","
+              + _histograms[p][b] + "\n");
+      out.write("\ntime_ns,phase,duration_ns\n");
+      long end = _ring_pos;
+      long start = Math.max(0, end - RING_SIZE);
+      for (long pos = start; pos < end; pos++)
+      {
+        int i = (int)(pos & (RING_SIZE - 1));
+        out.write(_ring_time_ns[i] + "," + PHASE_NAMES[_ring_phase[i]] + ","
+            + _ring_duration_ns[i] + "\n");
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+}
@@ -4,6 +4,7 @@ import android.content.res.Resources;
 import android.view.KeyEvent;
 import java.util.TreeMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -17,6 +18,20 @@ public final class LayoutModifier
   // Not used in this file but defined here for convenience.
   public static KeyboardData.Row split_middle_column;
 
+  /** Number of layouts kept by [modify_layout]. */
+  static final int CACHE_SIZE = 8;
+
+  /** Results of [modify_layout], least recently used first. */
+  static final LinkedHashMap<CacheKey, KeyboardData> _cache =
+    new LinkedHashMap<CacheKey, KeyboardData>(CACHE_SIZE * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, KeyboardData> e)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+  static final CacheStats _cache_stats = new CacheStats();
+
   /** Update the layout according to the configuration.
    *  - Remove the switching key if it isn't needed
    *  - Remove "localized" keys from other locales (not in 'extra_keys')
@@ -24,9 +39,46 @@ public final class LayoutModifier
    *  - Swap the enter and action keys
    *  - Add the optional numpad and number row
    *  - Add the extra keys
+   *  The result is cached, see [CacheKey].
    */
   public static KeyboardData modify_layout(KeyboardData kw)
   {
+    CacheKey key = new CacheKey(kw, globalConfig);
+    KeyboardData modified = _cache.get(key);
+    if (modified != null)
+    {
+      _cache_stats.hit();
+      return modified;
+    }
+    _cache_stats.miss();
+    modified = modify_layout_uncached(key);
+    _cache.put(key, modified);
+    return modified;
+  }
+
+  /** The key of [kw] with the current config, or [null] if [modify_layout]
+      has the result in cache. Must be called from the main thread. */
+  static CacheKey uncached_key(KeyboardData kw)
+  {
+    CacheKey key = new CacheKey(kw, globalConfig);
+    return _cache.containsKey(key) ? null : key;
+  }
+
+  /** Add a layout modified with [modify_layout_uncached] on an other thread
+      to the cache of [modify_layout]. It is dropped if the config changed
+      since [key] was made. Must be called from the main thread. */
+  static void add_to_cache(CacheKey key, KeyboardData modified)
+  {
+    if (!key.equals(new CacheKey(key.layout, globalConfig))
+        || _cache.containsKey(key))
+      return;
+    _cache.put(key, modified);
+  }
+
+  /** Only reads the config from [conf] and can be called from any thread. */
+  static KeyboardData modify_layout_uncached(final CacheKey conf)
+  {
+    KeyboardData kw = conf.layout;
     // Extra keys are removed from the set as they are encountered during the
     // first iteration then automatically added.
     final TreeMap<KeyValue, KeyboardData.PreferredPos> extra_keys = new TreeMap<KeyValue, KeyboardData.PreferredPos>();
@@ -34,21 +86,21 @@ public final class LayoutModifier
     // Make sure the config key is accessible to avoid being locked in a custom
     // layout.
     extra_keys.put(KeyValue.CONFIG, KeyboardData.PreferredPos.ANYWHERE);
-    extra_keys.putAll(globalConfig.extra_keys_param);
-    extra_keys.putAll(globalConfig.extra_keys_custom);
+    extra_keys.putAll(conf.extra_keys_param);
+    extra_keys.putAll(conf.extra_keys_custom);
     // Number row and numpads are added after the modification pass to allow
     // removing the number keys from the main layout.
     KeyboardData.Row added_number_row = null;
     KeyboardData added_numpad = null;
-    if (globalConfig.show_numpad)
+    if (conf.show_numpad)
     {
-      added_numpad = modify_numpad(num_pad, kw);
+      added_numpad = modify_numpad(num_pad, kw, conf);
       remove_keys.addAll(added_numpad.getKeys().keySet());
     }
-    else if (globalConfig.add_number_row && !kw.embedded_number_row) // The numpad removes the number row
+    else if (conf.add_number_row && !kw.embedded_number_row) // The numpad removes the number row
     {
-      added_number_row = modify_number_row(globalConfig.number_row_symbols ? number_row_symbols : number_row_no_symbols, kw);
-      if (globalConfig.split_layout)
+      added_number_row = modify_number_row(conf.number_row_symbols ? number_row_symbols : number_row_no_symbols, kw);
+      if (conf.split_layout)
         added_number_row = LayoutLandscapeModifier.transform_number_row(added_number_row);
       remove_keys.addAll(added_number_row.getKeys(0).keySet());
     }
@@ -56,18 +108,18 @@ public final class LayoutModifier
     if (kw.bottom_row)
       kw = kw.insert_row(bottom_row, kw.rows.size());
     // Split the layout in landscape orientation
-    if (globalConfig.split_layout)
+    if (conf.split_layout)
       kw = LayoutLandscapeModifier.transform_to_landscape(kw);
     // Compose keys to add to the layout
     // 'extra_keys_keyset' reflects changes made to 'extra_keys'
     Set<KeyValue> extra_keys_keyset = extra_keys.keySet();
     // 'kw_keys' contains the keys present on the layout without any extra keys
     Set<KeyValue> kw_keys = kw.getKeys().keySet();
-    if (globalConfig.extra_keys_subtype != null && kw.locale_extra_keys)
+    if (conf.extra_keys_subtype != null && kw.locale_extra_keys)
     {
       Set<KeyValue> present = new HashSet<KeyValue>(kw_keys);
       present.addAll(extra_keys_keyset);
-      globalConfig.extra_keys_subtype.compute(extra_keys,
+      conf.extra_keys_subtype.compute(extra_keys,
           new ExtraKeys.Query(kw.script, present));
     }
     kw = kw.mapKeys(new KeyboardData.MapKeyValues() {
@@ -77,7 +129,7 @@ public final class LayoutModifier
           return null;
         if (remove_keys.contains(key))
           return null;
-        return modify_key(key);
+        return modify_key(key, conf);
       }
     });
     if (added_numpad != null)
@@ -95,6 +147,12 @@ public final class LayoutModifier
   /** Handle the numpad layout. The [main_kw] is used to adapt the numpad to
       the main layout's script. */
   public static KeyboardData modify_numpad(KeyboardData kw, KeyboardData main_kw)
+  {
+    return modify_numpad(kw, main_kw, new CacheKey(main_kw, globalConfig));
+  }
+
+  static KeyboardData modify_numpad(KeyboardData kw, KeyboardData main_kw,
+      final CacheKey conf)
   {
     final int map_digit = KeyModifier.modify_numpad_script(main_kw.numpad_script);
     return kw.mapKeys(new KeyboardData.MapKeyValues() {
@@ -105,7 +163,7 @@ public final class LayoutModifier
           case Char:
             char prev_c = key.getChar();
             char c = prev_c;
-            if (globalConfig.inverse_numpad)
+            if (conf.inverse_numpad)
               c = inverse_numpad_char(c);
             if (map_digit != -1)
             {
@@ -117,7 +175,7 @@ public final class LayoutModifier
               return key.withChar(c);
             return key; // Don't fallback into [modify_key]
         }
-        return modify_key(key);
+        return modify_key(key, conf);
       }
     });
   }
@@ -154,33 +212,32 @@ public final class LayoutModifier
 
   /** Modify keys on the main layout and on the numpad according to the config.
    */
-  static KeyValue modify_key(KeyValue orig)
+  static KeyValue modify_key(KeyValue orig, CacheKey conf)
   {
-    EditorConfig ec = globalConfig.editor_config;
     switch (orig.getKind())
     {
       case Event:
         switch (orig.getEvent())
         {
           case CHANGE_METHOD_PICKER:
-            return globalConfig.change_method_key_replacement;
+            return conf.change_method_key_replacement;
           case ACTION:
-            return ec.action_key_replacement;
+            return conf.action_key_replacement;
           case SWITCH_FORWARD:
-            return (globalConfig.layouts.size() > 1) ? orig : null;
+            return (conf.layouts_count > 1) ? orig : null;
           case SWITCH_BACKWARD:
-            return (globalConfig.layouts.size() > 2) ? orig : null;
+            return (conf.layouts_count > 2) ? orig : null;
           case SWITCH_VOICE_TYPING:
           case SWITCH_VOICE_TYPING_CHOOSER:
-            return globalConfig.shouldOfferVoiceTyping ? orig : null;
+            return conf.voice_typing ? orig : null;
         }
         break;
       case Keyevent:
         switch (orig.getKeyevent())
         {
           case KeyEvent.KEYCODE_ENTER:
-            if (ec.enter_key_replacement != null)
-              return ec.enter_key_replacement;
+            if (conf.enter_key_replacement != null)
+              return conf.enter_key_replacement;
             break;
         }
         break;
@@ -205,6 +262,7 @@ public final class LayoutModifier
   public static void init(Config globalConfig_, Resources res)
   {
     globalConfig = globalConfig_;
+    _cache.clear();
     try
     {
       number_row_no_symbols = KeyboardData.load_row(res, R.xml.number_row_no_symbols);
@@ -218,4 +276,111 @@ public final class LayoutModifier
       throw new RuntimeException(e.getMessage()); // Not recoverable
     }
   }
+
+  /** The inputs of [modify_layout]. Layouts and the extra keys maps are
+      compared by identity, they are not re-created by [Config.refresh] unless
+      the corresponding options changed. The values are copied from the
+      config, the layout can be modified on an other thread. */
+  static final class CacheKey
+  {
+    final KeyboardData layout;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_param;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_custom;
+    final ExtraKeys extra_keys_subtype;
+    final boolean show_numpad;
+    final boolean add_number_row;
+    final boolean number_row_symbols;
+    final boolean split_layout;
+    final boolean inverse_numpad;
+    final boolean voice_typing;
+    /** [Config.layouts.size()], limited to the values that change the
+        result of [modify_key]. */
+    final int layouts_count;
+    final KeyValue change_method_key_replacement;
+    final KeyValue action_key_replacement;
+    final KeyValue enter_key_replacement;
+
+    public CacheKey(KeyboardData kw, Config conf)
+    {
+      layout = kw;
+      extra_keys_param = conf.extra_keys_param;
+      extra_keys_custom = conf.extra_keys_custom;
+      extra_keys_subtype = conf.extra_keys_subtype;
+      show_numpad = conf.show_numpad;
+      add_number_row = conf.add_number_row;
+      number_row_symbols = conf.number_row_symbols;
+      split_layout = conf.split_layout;
+      inverse_numpad = conf.inverse_numpad;
+      voice_typing = conf.shouldOfferVoiceTyping;
+      layouts_count = Math.min(conf.layouts.size(), 3);
+      change_method_key_replacement = conf.change_method_key_replacement;
+      action_key_replacement = conf.editor_config.action_key_replacement;
+      enter_key_replacement = conf.editor_config.enter_key_replacement;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof CacheKey))
+        return false;
+      CacheKey k = (CacheKey)obj;
+      return layout == k.layout
+        && extra_keys_param == k.extra_keys_param
+        && extra_keys_custom == k.extra_keys_custom
+        && extra_keys_subtype == k.extra_keys_subtype
+        && show_numpad == k.show_numpad
+        && add_number_row == k.add_number_row
+        && number_row_symbols == k.number_row_symbols
+        && split_layout == k.split_layout
+        && inverse_numpad == k.inverse_numpad
+        && voice_typing == k.voice_typing
+        && layouts_count == k.layouts_count
+        && change_method_key_replacement == k.change_method_key_replacement
+        && same_key(action_key_replacement, k.action_key_replacement)
+        && same_key(enter_key_replacement, k.enter_key_replacement);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return System.identityHashCode(layout);
+    }
+
+    /** [EditorConfig] re-creates the action keys for each input field. */
+    static boolean same_key(KeyValue a, KeyValue b)
+    {
+      return (a == null) ? (b == null) : a.equals(b);
+    }
+  }
+
+  /** Hit rate of the cache of [modify_layout], logged periodically. */
+  static final class CacheStats
+  {
+    static final int LOOKUPS_PER_REPORT = 32;
+
+    int hits = 0;
+    int misses = 0;
+
+    public void hit()
+    {
+      hits++;
+      report();
+    }
+
+    public void miss()
+    {
+      misses++;
+      report();
+    }
+
+    void report()
+    {
+      if (hits + misses < LOOKUPS_PER_REPORT)
+        return;
+      Logs.debug("Modified layouts cache: " + hits + " hits, " + misses
+          + " misses, " + _cache.size() + " cached");
+      hits = 0;
+      misses = 0;
+    }
+  }
 }
@@ -0,0 +1,95 @@
+package juloo.keyboard2;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Parse and modify the layouts that might be shown later on a background
+    thread. The layouts are immutable and are added to the cache of
+    [KeyboardData.load] or [LayoutModifier.modify_layout] on the main thread,
+    after which loading them doesn't block. */
+public final class LayoutsWarmup
+{
+  /** Layouts that are not part of [Config.layouts]. */
+  static final int[] SPECIAL_LAYOUTS = new int[]{
+    R.xml.numeric, R.xml.numeric_landscape, R.xml.pin, R.xml.pin_landscape,
+    R.xml.greekmath
+  };
+
+  /** The layouts are published on the thread of [main]. */
+  public static void start(final Resources res, final Handler main)
+  {
+    (new Thread()
+     {
+       public void run()
+       {
+         long start = System.nanoTime();
+         final KeyboardData[] loaded = new KeyboardData[SPECIAL_LAYOUTS.length];
+         for (int i = 0; i < SPECIAL_LAYOUTS.length; i++)
+         {
+           try
+           {
+             loaded[i] = KeyboardData.load_exn(res, SPECIAL_LAYOUTS[i]);
+           }
+           catch (Exception e)
+           {
+             Logs.exn("Failed to load layout id " + SPECIAL_LAYOUTS[i], e);
+           }
+         }
+         final long duration_us = (System.nanoTime() - start) / 1000;
+         main.post(new Runnable()
+             {
+               public void run()
+               {
+                 for (int i = 0; i < SPECIAL_LAYOUTS.length; i++)
+                   if (loaded[i] != null)
+                     KeyboardData.add_to_cache(SPECIAL_LAYOUTS[i], loaded[i]);
+                 Logs.debug("Layouts warmup: " + loaded.length + " layouts in "
+                     + duration_us + "us");
+               }
+             });
+       }
+     }).start();
+  }
+
+  /** Pass [layouts] through [LayoutModifier.modify_layout] for the current
+      config. Must be called from the main thread, only the layouts that are
+      not in the cache are modified, on a background thread. The results are
+      dropped if the config changes in the meantime. */
+  public static void modify_layouts(List<KeyboardData> layouts,
+      final Handler main)
+  {
+    final List<LayoutModifier.CacheKey> keys =
+      new ArrayList<LayoutModifier.CacheKey>();
+    for (KeyboardData l : layouts)
+    {
+      LayoutModifier.CacheKey key = LayoutModifier.uncached_key(l);
+      if (key != null && !keys.contains(key))
+        keys.add(key);
+    }
+    if (keys.size() == 0)
+      return;
+    (new Thread()
+     {
+       public void run()
+       {
+         long start = System.nanoTime();
+         final KeyboardData[] modified = new KeyboardData[keys.size()];
+         for (int i = 0; i < modified.length; i++)
+           modified[i] = LayoutModifier.modify_layout_uncached(keys.get(i));
+         final long duration_us = (System.nanoTime() - start) / 1000;
+         main.post(new Runnable()
+             {
+               public void run()
+               {
+                 for (int i = 0; i < modified.length; i++)
+                   LayoutModifier.add_to_cache(keys.get(i), modified[i]);
+                 Logs.debug("Layouts warmup: " + modified.length
+                     + " layouts modified in " + duration_us + "us");
+               }
+             });
+       }
+     }).start();
+  }
+}
@@ -0,0 +1,59 @@
+package juloo.keyboard2;
+
+import java.util.HashMap;
+
+/** The key values of every keys of a layout as they are displayed under a
+    given set of modifiers. [KeyModifier.modify] is called for every key once
+    per distinct set of modifiers instead of every frame. A new instance must
+    be created when the layout or the modmap changes. */
+public final class ModifiedLabels
+{
+  /** Bound the number of memoized tables. Usually, only a handful of
+      modifier combinations are used with a layout. */
+  static final int MAX_TABLES = 8;
+
+  final KeyboardData _keyboard;
+  final int _key_count;
+  final HashMap<Pointers.Modifiers, KeyValue[]> _tables = new HashMap<Pointers.Modifiers, KeyValue[]>();
+
+  public ModifiedLabels(KeyboardData kw)
+  {
+    _keyboard = kw;
+    int count = 0;
+    for (KeyboardData.Row row : kw.rows)
+      count += row.keys.size();
+    _key_count = count;
+  }
+
+  /** Returns a table containing 9 entries per key, in the order of
+      [KeyboardData.rows] and [KeyboardData.Row.keys]. The entry at
+      [key_index * 9 + i] is the modified value of [keys[i]] or [null] if the
+      value is not displayed. */
+  public KeyValue[] get(Pointers.Modifiers mods)
+  {
+    KeyValue[] t = _tables.get(mods);
+    if (t == null)
+    {
+      if (_tables.size() >= MAX_TABLES)
+        _tables.clear();
+      t = compute(mods);
+      _tables.put(mods, t);
+    }
+    return t;
+  }
+
+  KeyValue[] compute(Pointers.Modifiers mods)
+  {
+    KeyValue[] t = new KeyValue[_key_count * 9];
+    int i = 0;
+    for (KeyboardData.Row row : _keyboard.rows)
+      for (KeyboardData.Key k : row.keys)
+      {
+        for (int j = 0; j < 9; j++)
+          if (k.keys[j] != null)
+            t[i + j] = KeyModifier.modify(k.keys[j], mods);
+        i += 9;
+      }
+    return t;
+  }
+}
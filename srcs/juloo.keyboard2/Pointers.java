@@ -1,9 +1,9 @@
 package juloo.keyboard2;
 
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -11,7 +11,7 @@ import java.util.NoSuchElementException;
  * Manage pointers (fingers) on the screen and long presses.
  * Call back to IPointerEventHandler.
  */
-public final class Pointers implements Handler.Callback
+public final class Pointers implements DeadlineScheduler.Callback<Pointers.Pointer>
 {
   public static final int FLAG_P_LATCHABLE = 1;
   public static final int FLAG_P_LATCHED = (1 << 1);
@@ -24,14 +24,35 @@ public final class Pointers implements Handler.Callback
   /** Can't be locked, even when long pressing. */
   public static final int FLAG_P_CANT_LOCK = (1 << 7);
 
-  private Handler _longpress_handler;
+  /** Pointer ids are indexes into [_ptrs_by_id] if they are lower than
+      this. Android uses small integers for pointer ids. */
+  static final int MAX_INDEXED_POINTER_ID = 32;
+
+  /** Long press and key repeat timers of every pointers. */
+  private DeadlineScheduler<Pointer> _longpress_timers;
+  /** Pressed and latched pointers. Iterated with an index to avoid
+      allocating iterators. */
   private ArrayList<Pointer> _ptrs = new ArrayList<Pointer>();
+  /** Pressed pointers indexed by pointer id. See [getPtr]. */
+  private Pointer[] _ptrs_by_id = new Pointer[MAX_INDEXED_POINTER_ID];
+  /** Removed pointers, reused by [make_pointer]. */
+  private ArrayList<Pointer> _free_ptrs = new ArrayList<Pointer>();
+  /** Index of the keys of the current layout. See [set_keyboard]. */
+  private IdentityHashMap<KeyboardData.Key, Integer> _key_indexes =
+    new IdentityHashMap<KeyboardData.Key, Integer>();
+  /** Bitset of the keys that are pressed or latched, by key index. */
+  private long[] _keys_down = new long[0];
+  /** Last results of [getModifiers]. */
+  private ModifiersSnapshot _mods_all = new ModifiersSnapshot();
+  private ModifiersSnapshot _mods_skip_latched = new ModifiersSnapshot();
+  /** Latency saved by [Config.swipe_early_commit]. */
+  private EarlyCommitStats _early_commit_stats = new EarlyCommitStats();
   private IPointerEventHandler _handler;
   private Config _config;
 
   public Pointers(IPointerEventHandler h, Config c)
   {
-    _longpress_handler = new Handler(this);
+    _longpress_timers = new DeadlineScheduler<Pointer>(this);
     _handler = h;
     _config = c;
   }
@@ -42,11 +63,17 @@ public final class Pointers implements Handler.Callback
     return getModifiers(false);
   }
 
-  /** When [skip_latched] is true, don't take flags of latched keys into account. */
+  /** When [skip_latched] is true, don't take flags of latched keys into
+      account. The previous result is returned if the values of the pointers
+      didn't change, which avoids allocating while typing. */
   private Modifiers getModifiers(boolean skip_latched)
   {
+    ModifiersSnapshot snap = skip_latched ? _mods_skip_latched : _mods_all;
     int n_ptrs = _ptrs.size();
-    KeyValue[] mods = new KeyValue[n_ptrs];
+    if (snap.values.length < n_ptrs)
+      snap.values = Arrays.copyOf(snap.values, n_ptrs * 2);
+    KeyValue[] values = snap.values;
+    boolean changed = false;
     int n_mods = 0;
     for (int i = 0; i < n_ptrs; i++)
     {
@@ -54,32 +81,74 @@ public final class Pointers implements Handler.Callback
       if (p.value != null
           && !(skip_latched && p.hasFlagsAny(FLAG_P_LATCHED)
             && (p.flags & FLAG_P_LOCKED) == 0))
-        mods[n_mods++] = p.value;
+      {
+        if (values[n_mods] != p.value)
+        {
+          values[n_mods] = p.value;
+          changed = true;
+        }
+        n_mods++;
+      }
+    }
+    if (changed || n_mods != snap.size)
+    {
+      snap.size = n_mods;
+      snap.mods = Modifiers.ofArray(Arrays.copyOf(values, n_mods), n_mods);
     }
-    return Modifiers.ofArray(mods, n_mods);
+    return snap.mods;
   }
 
   public void clear()
   {
-    for (Pointer p : _ptrs)
+    for (int i = _ptrs.size() - 1; i >= 0; i--)
+    {
+      Pointer p = _ptrs.get(i);
       stopLongPress(p);
+      free_pointer(p);
+    }
     _ptrs.clear();
+    Arrays.fill(_ptrs_by_id, null);
+    refresh_keys_down();
+  }
+
+  /** Must be called when the layout changes. Keys are indexed in the order
+      of [KeyboardData.rows] and [KeyboardData.Row.keys], which is used by
+      [isKeyDown(int)]. */
+  public void set_keyboard(KeyboardData kw)
+  {
+    _key_indexes.clear();
+    int i = 0;
+    for (KeyboardData.Row row : kw.rows)
+      for (KeyboardData.Key k : row.keys)
+        _key_indexes.put(k, i++);
+    _keys_down = new long[(i + 63) / 64];
+    refresh_keys_down();
   }
 
   public boolean isKeyDown(KeyboardData.Key k)
   {
-    for (Pointer p : _ptrs)
-      if (p.key == k)
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).key == k)
         return true;
     return false;
   }
 
+  /** Whether the key at index [key_index] is pressed or latched. See
+      [set_keyboard]. */
+  public boolean isKeyDown(int key_index)
+  {
+    return (_keys_down[key_index >> 6] & (1L << key_index)) != 0;
+  }
+
   /** See [FLAG_P_*] flags. Returns [-1] if the key is not pressed. */
   public int getKeyFlags(KeyValue kv)
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.value != null && p.value.equals(kv))
         return p.flags;
+    }
     return -1;
   }
 
@@ -89,8 +158,8 @@ public final class Pointers implements Handler.Callback
     int flags = pointer_flags_of_kv(kv) | FLAG_P_FAKE | FLAG_P_LATCHED;
     if (locked)
       flags |= FLAG_P_LOCKED;
-    Pointer ptr = new Pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags);
-    _ptrs.add(ptr);
+    Pointer ptr = alloc_pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags);
+    addPtr(ptr);
     _handler.onPointerFlagsChanged(false);
   }
 
@@ -148,6 +217,7 @@ public final class Pointers implements Handler.Callback
     }
     stopLongPress(ptr);
     KeyValue ptr_value = ptr.value;
+    Modifiers ptr_mods = ptr.modifiers;
     if (ptr.gesture != null && ptr.gesture.is_in_progress())
     {
       // A gesture was in progress
@@ -163,7 +233,7 @@ public final class Pointers implements Handler.Callback
       else // Otherwise, unlatch
       {
         removePtr(latched);
-        _handler.onPointerUp(ptr_value, ptr.modifiers);
+        _handler.onPointerUp(ptr_value, ptr_mods);
       }
     }
     else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
@@ -172,19 +242,31 @@ public final class Pointers implements Handler.Callback
       if ((ptr.flags & FLAG_P_CLEAR_LATCHED) != 0)
         clearLatched();
       ptr.flags |= FLAG_P_LATCHED;
+      unindex_pointer_id(ptr);
       ptr.pointerId = -1;
       _handler.onPointerFlagsChanged(false);
     }
+    else if (ptr.early_commit_time >= 0)
+    {
+      // The value was already sent by [early_commit].
+      _early_commit_stats.committed(
+          SystemClock.uptimeMillis() - ptr.early_commit_time);
+      clearLatched();
+      removePtr(ptr);
+      _handler.onPointerFlagsChanged(false);
+    }
     else
     {
       clearLatched();
       removePtr(ptr);
-      _handler.onPointerUp(ptr_value, ptr.modifiers);
+      _handler.onPointerUp(ptr_value, ptr_mods);
     }
   }
 
   public void onTouchCancel()
   {
+    for (int i = 0; i < _ptrs.size(); i++)
+      retract_early_commit(_ptrs.get(i));
     clear();
     _handler.onPointerFlagsChanged(true);
   }
@@ -192,10 +274,13 @@ public final class Pointers implements Handler.Callback
   /* Whether an other pointer is down on a non-special key. */
   private boolean isOtherPointerDown()
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (!p.hasFlagsAny(FLAG_P_LATCHED) &&
           (p.value == null || !p.value.hasFlagsAny(KeyValue.FLAG_SPECIAL)))
         return true;
+    }
     return false;
   }
 
@@ -210,7 +295,7 @@ public final class Pointers implements Handler.Callback
     Modifiers mods = getModifiers(isOtherPointerDown());
     KeyValue value = _handler.modifyKey(key.keys[0], mods);
     Pointer ptr = make_pointer(pointerId, key, value, x, y, mods);
-    _ptrs.add(ptr);
+    addPtr(ptr);
     startLongPress(ptr);
     _handler.onPointerDown(value, false);
   }
@@ -260,14 +345,18 @@ public final class Pointers implements Handler.Callback
     return null;
   }
 
-  public void onTouchMove(float x, float y, int pointerId)
+  /** [event_time] is in the [SystemClock.uptimeMillis()] time base, as
+      returned by [MotionEvent.getEventTime()]. This is called for every
+      historical samples of a move event and must be cheap when the pointer
+      doesn't change direction. */
+  public void onTouchMove(float x, float y, int pointerId, long event_time)
   {
     Pointer ptr = getPtr(pointerId);
     if (ptr == null)
       return;
     if (ptr.hasFlagsAny(FLAG_P_SLIDING))
     {
-      ptr.sliding.onTouchMove(ptr, x, y);
+      ptr.sliding.onTouchMove(ptr, x, y, event_time);
       return;
     }
 
@@ -285,6 +374,7 @@ public final class Pointers implements Handler.Callback
         return;
       // Gesture ended
       ptr.gesture.moved_to_center();
+      retract_early_commit(ptr);
       ptr.value = apply_gesture(ptr, ptr.gesture.get_gesture());
       ptr.flags = 0;
 
@@ -292,15 +382,23 @@ public final class Pointers implements Handler.Callback
     else
     { // Pointer is on a quadrant.
       // See [getKeyAtDirection()] for the meaning. The starting point on the
-      // circle is the top direction.
-      double a = Math.atan2(dy, dx) + Math.PI;
-      // a is between 0 and 2pi, 0 is pointing to the left
-      // add 12 to align 0 to the top
-      int direction = ((int)(a * 8 / Math.PI) + 12) % 16;
+      // circle is the top direction. The initial direction is exact, later
+      // samples stick to the current direction near a boundary.
+      int direction = (ptr.gesture == null)
+        ? DirectionQuantizer.direction(dx, dy)
+        : DirectionQuantizer.direction(dx, dy, ptr.last_direction);
+      // Samples that don't change the direction have no effect on the
+      // gesture.
+      if (direction == ptr.last_direction)
+      {
+        early_commit(ptr, dist);
+        return;
+      }
+      ptr.last_direction = direction;
       if (ptr.gesture == null)
       { // Gesture starts
 
-        ptr.gesture = new Gesture(direction);
+        ptr.gesture = ptr.start_gesture(direction);
         KeyValue new_value = getNearestKeyAtDirection(ptr, direction);
         if (new_value != null)
         { // Pointer is swiping into a side key.
@@ -311,6 +409,7 @@ public final class Pointers implements Handler.Callback
           if (new_value.getKind() == KeyValue.Kind.Slider)
             startSliding(ptr, x, y, dx, dy, new_value);
           _handler.onPointerDown(new_value, true);
+          early_commit(ptr, dist);
         }
 
       }
@@ -322,6 +421,7 @@ public final class Pointers implements Handler.Callback
         }
         else
         {
+          retract_early_commit(ptr);
           ptr.value = apply_gesture(ptr, ptr.gesture.get_gesture());
           restartLongPress(ptr);
           ptr.flags = 0; // Special behaviors are ignored during a gesture.
@@ -335,15 +435,56 @@ public final class Pointers implements Handler.Callback
 
   private Pointer getPtr(int pointerId)
   {
-    for (Pointer p : _ptrs)
+    if (pointerId >= 0 && pointerId < MAX_INDEXED_POINTER_ID)
+      return _ptrs_by_id[pointerId];
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.pointerId == pointerId)
         return p;
+    }
     return null;
   }
 
+  private void addPtr(Pointer ptr)
+  {
+    _ptrs.add(ptr);
+    if (ptr.pointerId >= 0 && ptr.pointerId < MAX_INDEXED_POINTER_ID)
+      _ptrs_by_id[ptr.pointerId] = ptr;
+    set_key_down(ptr.key);
+  }
+
+  /** The pointer is returned to the pool and must not be used after this
+      call. */
   private void removePtr(Pointer ptr)
   {
     _ptrs.remove(ptr);
+    unindex_pointer_id(ptr);
+    free_pointer(ptr);
+    refresh_keys_down();
+  }
+
+  private void unindex_pointer_id(Pointer ptr)
+  {
+    int id = ptr.pointerId;
+    if (id >= 0 && id < MAX_INDEXED_POINTER_ID && _ptrs_by_id[id] == ptr)
+      _ptrs_by_id[id] = null;
+  }
+
+  private void set_key_down(KeyboardData.Key k)
+  {
+    Integer i = _key_indexes.get(k);
+    if (i != null)
+      _keys_down[i >> 6] |= (1L << i);
+  }
+
+  /** Recompute [_keys_down] after a pointer is removed. A key might be held
+      by several pointers. */
+  private void refresh_keys_down()
+  {
+    Arrays.fill(_keys_down, 0L);
+    for (int i = 0; i < _ptrs.size(); i++)
+      set_key_down(_ptrs.get(i).key);
   }
 
   private Pointer getLatched(Pointer target)
@@ -355,25 +496,35 @@ public final class Pointers implements Handler.Callback
   {
     if (v == null)
       return null;
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.key == k && p.hasFlagsAny(FLAG_P_LATCHED)
           && p.value != null && p.value.equals(v))
         return p;
+    }
     return null;
   }
 
   private void clearLatched()
   {
+    boolean removed = false;
     for (int i = _ptrs.size() - 1; i >= 0; i--)
     {
       Pointer ptr = _ptrs.get(i);
       // Latched and not locked, remove
       if (ptr.hasFlagsAny(FLAG_P_LATCHED) && (ptr.flags & FLAG_P_LOCKED) == 0)
+      {
         _ptrs.remove(i);
+        free_pointer(ptr);
+        removed = true;
+      }
       // Not latched but pressed, don't latch once released and stop long press.
       else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
         ptr.flags &= ~FLAG_P_LATCHABLE;
     }
+    if (removed)
+      refresh_keys_down();
   }
 
   /** Make a pointer into the locked state. */
@@ -385,41 +536,31 @@ public final class Pointers implements Handler.Callback
 
   boolean isSliding()
   {
-    for (Pointer ptr : _ptrs)
-      if (ptr.hasFlagsAny(FLAG_P_SLIDING))
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).hasFlagsAny(FLAG_P_SLIDING))
         return true;
     return false;
   }
 
   // Key repeat
 
-  /** Message from [_longpress_handler]. */
+  /** Timer from [_longpress_timers]. Removed pointers are never passed
+      here, see [free_pointer]. */
   @Override
-  public boolean handleMessage(Message msg)
+  public void expired(Pointer ptr)
   {
-    for (Pointer ptr : _ptrs)
-    {
-      if (ptr.timeoutWhat == msg.what)
-      {
-        handleLongPress(ptr);
-        return true;
-      }
-    }
-    return false;
+    handleLongPress(ptr);
   }
 
-  private static int uniqueTimeoutWhat = 0;
-
   private void startLongPress(Pointer ptr)
   {
-    int what = (uniqueTimeoutWhat++);
-    ptr.timeoutWhat = what;
-    _longpress_handler.sendEmptyMessageDelayed(what, _config.longPressTimeout);
+    ptr.repeat_count = 0;
+    _longpress_timers.schedule(ptr, _config.longPressTimeout);
   }
 
   private void stopLongPress(Pointer ptr)
   {
-    _longpress_handler.removeMessages(ptr.timeoutWhat);
+    _longpress_timers.cancel(ptr);
   }
 
   private void restartLongPress(Pointer ptr)
@@ -445,6 +586,7 @@ public final class Pointers implements Handler.Callback
     KeyValue kv = KeyModifier.modify_long_press(ptr.value);
     if (!kv.equals(ptr.value))
     {
+      retract_early_commit(ptr);
       ptr.value = kv;
       _handler.onPointerDown(kv, true);
       return;
@@ -456,11 +598,25 @@ public final class Pointers implements Handler.Callback
     if (_config.keyrepeat_enabled)
     {
       _handler.onPointerHold(kv, ptr.modifiers);
-      _longpress_handler.sendEmptyMessageDelayed(ptr.timeoutWhat,
-          _config.longPressInterval);
+      _longpress_timers.schedule(ptr, repeat_interval(ptr.repeat_count++));
     }
   }
 
+  /** Delay before the next key repeat after [n] repeats. The interval is
+      divided by [1 + n * Config.keyrepeat_acceleration] and stops decreasing
+      at [REPEAT_MIN_INTERVAL_RATIO] of [Config.longPressInterval]. */
+  long repeat_interval(int n)
+  {
+    long interval = _config.longPressInterval;
+    float accel = _config.keyrepeat_acceleration;
+    if (accel <= 0.f)
+      return interval;
+    long min_interval = (long)(interval * REPEAT_MIN_INTERVAL_RATIO);
+    return Math.max(min_interval, (long)(interval / (1.f + n * accel)));
+  }
+
+  static final float REPEAT_MIN_INTERVAL_RATIO = 0.25f;
+
   // Sliding
 
   /** When sliding is ongoing, key events are handled by the [Slider] class.
@@ -492,6 +648,44 @@ public final class Pointers implements Handler.Callback
     return flags;
   }
 
+  // Early commit
+
+  /** Send the value of a swiping pointer before it is released, if
+      [Config.swipe_early_commit] is enabled. The direction must not have
+      changed since the swipe started and the pointer must be further than
+      [Config.swipe_early_commit_dist_px]. Only keys that type text can be
+      sent early as they can be retracted by [retract_early_commit]. */
+  private void early_commit(Pointer ptr, float dist)
+  {
+    if (!_config.swipe_early_commit || ptr.early_commit_time >= 0
+        || ptr.flags != 0 || ptr.value == null
+        || dist < _config.swipe_early_commit_dist_px)
+      return;
+    Gesture g = ptr.gesture;
+    if (g == null || g.get_gesture() != Gesture.Name.Swipe
+        || !g.is_in_progress() || g.current_direction() != ptr.last_direction)
+      return;
+    switch (ptr.value.getKind())
+    {
+      case Char: case String: break;
+      default: return;
+    }
+    ptr.early_commit_time = SystemClock.uptimeMillis();
+    // Latched modifiers are cleared when the pointer is released.
+    _handler.onPointerUp(ptr.value, ptr.modifiers);
+  }
+
+  /** Must be called before the value of [ptr] changes. The value sent by
+      [early_commit] is removed. */
+  private void retract_early_commit(Pointer ptr)
+  {
+    if (ptr.early_commit_time < 0)
+      return;
+    ptr.early_commit_time = -1;
+    _early_commit_stats.retracted();
+    _handler.onPointerRetract(ptr.value);
+  }
+
   // Gestures
 
   /** Apply a gesture to the current key. */
@@ -533,15 +727,78 @@ public final class Pointers implements Handler.Callback
       Modifiers m)
   {
     int flags = (v == null) ? 0 : pointer_flags_of_kv(v);
-    return new Pointer(p, k, v, x, y, m, flags);
+    return alloc_pointer(p, k, v, x, y, m, flags);
+  }
+
+  /** Reuse a pointer from the pool if possible. */
+  Pointer alloc_pointer(int p, KeyboardData.Key k, KeyValue v, float x,
+      float y, Modifiers m, int f)
+  {
+    int n_free = _free_ptrs.size();
+    if (n_free == 0)
+      return new Pointer(p, k, v, x, y, m, f);
+    Pointer ptr = _free_ptrs.remove(n_free - 1);
+    ptr.init(p, k, v, x, y, m, f);
+    return ptr;
+  }
+
+  void free_pointer(Pointer ptr)
+  {
+    _longpress_timers.cancel(ptr);
+    ptr.sliding = null;
+    _free_ptrs.add(ptr);
+  }
+
+  /** Report the latency saved by [early_commit] to the debug logs. The
+      saved latency is the time between the early commit and the release of
+      the pointer. */
+  static final class EarlyCommitStats
+  {
+    static final int KEYS_PER_REPORT = 50;
+
+    int committed = 0;
+    int retracted = 0;
+    long total_saved_ms = 0;
+    long max_saved_ms = 0;
+
+    public void committed(long saved_ms)
+    {
+      committed++;
+      total_saved_ms += saved_ms;
+      if (saved_ms > max_saved_ms)
+        max_saved_ms = saved_ms;
+      if (committed < KEYS_PER_REPORT)
+        return;
+      Logs.debug("Early commit: " + committed + " keys, average "
+          + (total_saved_ms / committed) + "ms saved, max " + max_saved_ms
+          + "ms, " + retracted + " retracted");
+      committed = 0;
+      retracted = 0;
+      total_saved_ms = 0;
+      max_saved_ms = 0;
+    }
+
+    public void retracted()
+    {
+      retracted++;
+    }
+  }
+
+  /** Result of [getModifiers] and the pointer values it was computed from. */
+  static final class ModifiersSnapshot
+  {
+    KeyValue[] values = new KeyValue[8];
+    /** [-1] when nothing was computed yet. */
+    int size = -1;
+    Modifiers mods = Modifiers.EMPTY;
   }
 
-  private static final class Pointer
+  static final class Pointer
   {
     /** -1 when latched. */
     public int pointerId;
     /** The Key pressed by this Pointer */
-    public final KeyboardData.Key key;
+    public KeyboardData.Key key;
     /** Gesture state, see [Gesture]. [null] means the pointer has not moved out of the center region. */
     public Gesture gesture;
     /** Selected value with [modifiers] applied. */
@@ -552,12 +809,25 @@ public final class Pointers implements Handler.Callback
     public Modifiers modifiers;
     /** See [FLAG_P_*] flags. */
     public int flags;
-    /** Identify timeout messages. */
-    public int timeoutWhat;
+    /** Number of key repeats since the long press started. */
+    public int repeat_count;
+    /** Direction of the last move event out of the center region, [-1]
+        before the first. Used to skip events that don't change the
+        direction. */
+    public int last_direction;
     /** [null] when not in sliding mode. */
     public Sliding sliding;
+    /** Time at which [value] was sent by [early_commit] or [-1]. */
+    public long early_commit_time;
+    /** Reused by [start_gesture] when the pointer is reused. */
+    private Gesture _gesture_buf = null;
 
     public Pointer(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
+    {
+      init(p, k, v, x, y, m, f);
+    }
+
+    public void init(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
     {
       pointerId = p;
       key = k;
@@ -567,8 +837,19 @@ public final class Pointers implements Handler.Callback
       downY = y;
       modifiers = m;
       flags = f;
-      timeoutWhat = -1;
+      repeat_count = 0;
+      last_direction = -1;
       sliding = null;
+      early_commit_time = -1;
+    }
+
+    public Gesture start_gesture(int direction)
+    {
+      if (_gesture_buf == null)
+        _gesture_buf = new Gesture(direction);
+      else
+        _gesture_buf.restart(direction);
+      return _gesture_buf;
     }
 
     public boolean hasFlagsAny(int has)
@@ -586,7 +867,7 @@ public final class Pointers implements Handler.Callback
     /** Coordinate of the last move. */
     float last_x;
     float last_y;
-    /** [System.currentTimeMillis()] at the time of the last move. Equals to
+    /** Event time of the last move, see [Pointers.onTouchMove]. Equals to
       [-1] when the sliding hasn't started yet. */
     long last_move_ms = -1;
     /** The property which is being slided. */
@@ -616,7 +897,7 @@ public final class Pointers implements Handler.Callback
         means movement happens by whole words instead of characters) */
     static final float SPEED_WORD_MULT = 0.25f;
 
-    public void onTouchMove(Pointer ptr, float x, float y)
+    public void onTouchMove(Pointer ptr, float x, float y, long event_time)
     {
       // Start sliding only after the pointer has travelled an other distance.
       // This allows to trigger the slider movements only once with a short
@@ -626,7 +907,7 @@ public final class Pointers implements Handler.Callback
       {
         if (travelled < (_config.swipe_dist_px + _config.slide_step_px))
           return;
-        last_move_ms = System.currentTimeMillis();
+        last_move_ms = event_time;
       }
       float current_speed = speed / _config.slide_step_px;
       if (slider.isVertical()) {
@@ -637,7 +918,7 @@ public final class Pointers implements Handler.Callback
         d += (x - last_x) * current_speed * direction_x;
       }
 
-      update_speed(travelled, x, y);
+      update_speed(travelled, x, y, event_time);
       // Send an event when [abs(d)] exceeds [1].
       int d_ = (int)d;
       if (d_ != 0)
@@ -659,12 +940,12 @@ public final class Pointers implements Handler.Callback
 
     /** [speed] is computed from the elapsed time and distance traveled
         between two move events. Exponential smoothing is used to smooth out
-        the noise. Sets [last_move_ms] and [last_pos]. */
-    void update_speed(float travelled, float x, float y)
+        the noise. Sets [last_move_ms] and [last_pos]. Historical samples
+        might have the same event time. */
+    void update_speed(float travelled, float x, float y, long now)
     {
-      long now = System.currentTimeMillis();
       float instant_speed = Math.min(SPEED_MAX,
-          travelled / (float)(now - last_move_ms) + 1.f);
+          travelled / (float)Math.max(now - last_move_ms, 1) + 1.f);
       speed = speed + (instant_speed - speed) * SPEED_SMOOTHING;
       last_move_ms = now;
       last_x = x;
@@ -673,37 +954,57 @@ public final class Pointers implements Handler.Callback
   }
 
   /** Represent modifiers currently activated.
-      Sorted in the order they should be evaluated. */
+      Sorted in the order they should be evaluated. Modifier keys are also
+      stored as a bitset over [KeyValue.Modifier] ordinals, the few other keys
+      are stored in [_others]. Membership, equality and hashing are word
+      operations in the common case. */
   public static final class Modifiers
   {
     private final KeyValue[] _mods;
     private final int _size;
+    /** Bit [1 << m.ordinal()] is set for each modifier [m] in [_mods]. */
+    private final long _bits;
+    /** Keys in [_mods] that are not of kind [Modifier], for example compose
+        states or keys that are being held. Usually empty. */
+    private final KeyValue[] _others;
+    private final int _hash;
+
+    static
+    {
+      if (KeyValue.Modifier.values().length > 64)
+        throw new RuntimeException("Too many modifiers for a bitset");
+    }
 
-    private Modifiers(KeyValue[] m, int s)
+    private Modifiers(KeyValue[] m, int s, long bits, KeyValue[] others)
     {
-      _mods = m; _size = s;
+      _mods = m; _size = s; _bits = bits; _others = others;
+      _hash = (int)(bits ^ (bits >>> 32)) * 31 + Arrays.hashCode(others);
     }
 
     public KeyValue get(int i) { return _mods[_size - 1 - i]; }
     public int size() { return _size; }
     public boolean has(KeyValue.Modifier m)
     {
-      for (int i = 0; i < _size; i++)
-      {
-        KeyValue kv = _mods[i];
-        switch (kv.getKind())
-        {
-          case Modifier:
-            if (kv.getModifier().equals(m))
-              return true;
-        }
-      }
+      return (_bits & (1L << m.ordinal())) != 0;
+    }
+
+    /** Whether [kv] is one of the activated modifiers. Modifier keys are
+        compared on their [KeyValue.Modifier] only. */
+    boolean contains(KeyValue kv)
+    {
+      if (kv.getKind() == KeyValue.Kind.Modifier)
+        return has(kv.getModifier());
+      for (KeyValue o : _others)
+        if (o.sameKey(kv))
+          return true;
       return false;
     }
 
     /** Return a copy of this object with an extra modifier added. */
     public Modifiers with_extra_mod(KeyValue m)
     {
+      if (contains(m))
+        return this;
       KeyValue[] newmods = Arrays.copyOf(_mods, _size + 1);
       newmods[_size] = m;
       return ofArray(newmods, newmods.length);
@@ -716,50 +1017,87 @@ public final class Pointers implements Handler.Callback
     }
 
     @Override
-    public int hashCode() { return Arrays.hashCode(_mods); }
+    public int hashCode()
+    {
+      return _hash;
+    }
+
+    /** Modifier keys are compared on their [KeyValue.Modifier] only, the
+        flags and symbol of the key are not relevant to [KeyModifier]. */
     @Override
     public boolean equals(Object obj)
     {
-      return Arrays.equals(_mods, ((Modifiers)obj)._mods);
+      if (obj == this)
+        return true;
+      if (!(obj instanceof Modifiers))
+        return false;
+      Modifiers m = (Modifiers)obj;
+      return m._bits == _bits && m._hash == _hash
+        && Arrays.equals(m._others, _others);
     }
 
+    static final KeyValue[] NO_OTHERS = new KeyValue[0];
+
     public static final Modifiers EMPTY =
-      new Modifiers(new KeyValue[0], 0);
+      new Modifiers(new KeyValue[0], 0, 0L, NO_OTHERS);
 
     protected static Modifiers ofArray(KeyValue[] mods, int size)
     {
       // Sort and remove duplicates and nulls.
       if (size > 1)
-      {
         Arrays.sort(mods, 0, size);
-        int j = 0;
-        for (int i = 0; i < size; i++)
+      long bits = 0L;
+      int n_others = 0;
+      int j = 0;
+      for (int i = 0; i < size; i++)
+      {
+        KeyValue m = mods[i];
+        if (m == null)
+          continue;
+        if (m.getKind() == KeyValue.Kind.Modifier)
         {
-          KeyValue m = mods[i];
-          if (m != null && (i + 1 >= size || m != mods[i + 1]))
-          {
-            mods[j] = m;
-            j++;
-          }
+          long bit = 1L << m.getModifier().ordinal();
+          if ((bits & bit) != 0)
+            continue;
+          bits |= bit;
         }
-        size = j;
+        else
+        {
+          if (j > 0 && m.sameKey(mods[j - 1]))
+            continue;
+          n_others++;
+        }
+        mods[j] = m;
+        j++;
+      }
+      KeyValue[] others = NO_OTHERS;
+      if (n_others > 0)
+      {
+        others = new KeyValue[n_others];
+        int o = 0;
+        for (int i = 0; i < j; i++)
+          if (mods[i].getKind() != KeyValue.Kind.Modifier)
+            others[o++] = mods[i];
       }
-      return new Modifiers(mods, size);
+      return new Modifiers(mods, j, bits, others);
     }
 
-    /** Returns modifiers that are in [m1_] but not in [m2_]. */
+    /** Returns modifiers that are in [m1_] but not in [m2_]. Membership in
+        [m2_] is a bit test for modifier keys. */
     static final class ModifiersDiffIterator
         implements Iterator<KeyValue>
     {
       Modifiers m1;
       int i1 = 0;
       Modifiers m2;
-      int i2 = 0;
 
       public ModifiersDiffIterator(Modifiers m1_, Modifiers m2_)
       {
         m1 = m1_;
         m2 = m2_;
+        // Nothing to iterate when [m1_] is included in [m2_].
+        if ((m1._bits & ~m2._bits) == 0 && m1._others.length == 0)
+          i1 = m1._size;
         advance();
       }
 
@@ -782,22 +1120,8 @@ public final class Pointers implements Handler.Callback
           is reached when [i1 = m1.size()].  */
       void advance()
       {
-        while (i1 < m1.size())
-        {
-          KeyValue m = m1._mods[i1];
-          while (true)
-          {
-            if (i2 >= m2._size)
-              return;
-            int d = m.compareTo(m2._mods[i2]);
-            if (d < 0)
-              return;
-            i2++;
-            if (d == 0)
-              break;
-          }
+        while (i1 < m1._size && m2.contains(m1._mods[i1]))
           i1++;
-        }
       }
     }
   }
@@ -821,5 +1145,9 @@ public final class Pointers implements Handler.Callback
 
     /** Key is repeating. */
     public void onPointerHold(KeyValue k, Modifiers mods);
+
+    /** A key sent early by [onPointerUp] while the pointer was still down
+        must be undone. See [Config.swipe_early_commit]. */
+    public void onPointerRetract(KeyValue k);
   }
 }
@@ -1,6 +1,8 @@
 package juloo.keyboard2;
 
 import android.app.AlertDialog;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Insets;
 import android.inputmethodservice.InputMethodService;
@@ -11,9 +13,14 @@ import android.view.Window;
 import android.view.WindowInsets;
 import android.view.WindowManager;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 public final class Utils
@@ -69,4 +76,65 @@ public final class Utils
       out.write(buff, 0, l);
     return out.toByteArray();
   }
+
+  /** Read a file into an array allocated to the size of the file. Unlike
+      [read_all_bytes], the content is read only once and isn't copied. */
+  public static byte[] read_file(File file) throws IOException
+  {
+    FileInputStream inp = new FileInputStream(file);
+    try
+    {
+      long size = inp.getChannel().size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("File too large: " + file);
+      byte[] data = new byte[(int)size];
+      int pos = 0;
+      while (pos < data.length)
+      {
+        int l = inp.read(data, pos, data.length - pos);
+        if (l < 0)
+          throw new IOException("Unexpected end of file: " + file);
+        pos += l;
+      }
+      return data;
+    }
+    finally
+    {
+      inp.close();
+    }
+  }
+
+  /** Memory-map an asset if it is stored uncompressed in the APK, otherwise
+      read it into memory. */
+  public static ByteBuffer map_asset(AssetManager assets, String name)
+    throws IOException
+  {
+    try
+    {
+      AssetFileDescriptor fd = assets.openFd(name);
+      try
+      {
+        FileChannel ch = new FileInputStream(fd.getFileDescriptor()).getChannel();
+        return ch.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+            fd.getLength());
+      }
+      finally
+      {
+        fd.close();
+      }
+    }
+    catch (FileNotFoundException e)
+    {
+      // The asset is compressed, [openFd] is not supported.
+    }
+    InputStream inp = assets.open(name);
+    try
+    {
+      return ByteBuffer.wrap(read_all_bytes(inp));
+    }
+    finally
+    {
+      inp.close();
+    }
+  }
 }
@@ -4,14 +4,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import juloo.cdict.Cdict;
 import juloo.keyboard2.Config;
 import juloo.keyboard2.DirectBootAwarePreferences;
@@ -40,6 +40,7 @@ public final class Dictionaries
   {
     config.current_dictionary = null;
     config.emoji_dictionary = null;
+    _loaded_dictionaries.pin(name);
     if (name == null)
       return;
     Cdict[] dicts = load(name);
@@ -62,13 +63,25 @@ public final class Dictionaries
       is not installed or the dictionary couldn't be loaded. */
   public Cdict[] load(String dict_name)
   {
-    if (_loaded_dictionaries.containsKey(dict_name))
-      return _loaded_dictionaries.get(dict_name);
+    Cache.Entry<Cdict[]> e = _loaded_dictionaries.get(dict_name);
+    if (e != null)
+      return e.value;
     Cdict[] dict = load_uncached(dict_name);
-    _loaded_dictionaries.put(dict_name, dict);
+    long size = (dict == null) ? 0 : get_install_location(dict_name).length();
+    _loaded_dictionaries.put(dict_name, dict, size);
     return dict;
   }
 
+  /** Unload the dictionaries that are not currently used. Called when the
+      system is low on memory. */
+  public void trim_memory()
+  {
+    _loaded_dictionaries.trim();
+  }
+
+  /** Statistics about the loaded dictionaries. */
+  Cache<Cdict[]> get_loaded() { return _loaded_dictionaries; }
+
   public Set<String> get_installed() { return _installed_dictionaries; }
 
   /** The selected dictionary for the current layout. */
@@ -123,18 +136,22 @@ public final class Dictionaries
   Context _context;
   Set<String> _installed_dictionaries;
   SharedPreferences _shared_prefs;
-  Map<String, Cdict[]> _loaded_dictionaries;
+  Cache<Cdict[]> _loaded_dictionaries;
 
   static Dictionaries _instance = null;
 
   static final String PREF_INSTALLED_DICTS = "installed";
 
+  /** Maximum size of the dictionary files kept loaded. The dictionary in use
+      is kept loaded even if it's larger. */
+  static final long CACHE_BUDGET_BYTES = 24 * 1024 * 1024;
+
   Dictionaries(Context ctx, SharedPreferences prefs)
   {
     _context = ctx;
     _installed_dictionaries = new HashSet();
     _shared_prefs = prefs;
-    _loaded_dictionaries = new TreeMap<String, Cdict[]>();
+    _loaded_dictionaries = new Cache<Cdict[]>(CACHE_BUDGET_BYTES);
     Set<String> installed = prefs.getStringSet(PREF_INSTALLED_DICTS, null);
     if (installed != null)
       _installed_dictionaries.addAll(installed);
@@ -146,9 +163,7 @@ public final class Dictionaries
       return null;
     try
     {
-      FileInputStream inp = _context.openFileInput(dict_file_name(dict_name));
-      byte[] data = Utils.read_all_bytes(inp);
-      inp.close();
+      byte[] data = Utils.read_file(get_install_location(dict_name));
       return Cdict.of_bytes(data);
     }
     catch (IOException e) { return null; }
@@ -173,4 +188,104 @@ public final class Dictionaries
       config.device_locales.default_.lang_tag : "";
     return "selection:" + lang_tag + "-" + config.get_current_layout();
   }
+
+  /** Loaded dictionaries, in least recently used order. The least recently
+      used dictionaries are unloaded when the total size of the loaded
+      dictionaries exceeds the budget. The pinned dictionary is never
+      unloaded. The size of a dictionary is the size of its file, which is
+      loaded entirely in memory. */
+  static final class Cache<V>
+  {
+    static final class Entry<V>
+    {
+      final V value;
+      final long size;
+
+      Entry(V v, long s)
+      {
+        value = v;
+        size = s;
+      }
+    }
+
+    long hits = 0;
+    long misses = 0;
+    /** Sum of the sizes of the loaded dictionaries. */
+    long resident_bytes = 0;
+
+    final long _budget_bytes;
+    /** Ordered by access, the least recently used entry first. */
+    final LinkedHashMap<String, Entry<V>> _entries;
+    String _pinned = null;
+
+    Cache(long budget_bytes)
+    {
+      _budget_bytes = budget_bytes;
+      _entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+    }
+
+    /** Returns [null] if [name] is not loaded. The value of the entry might
+        be [null] if the dictionary couldn't be loaded. */
+    Entry<V> get(String name)
+    {
+      Entry<V> e = _entries.get(name);
+      if (e == null)
+        misses++;
+      else
+        hits++;
+      return e;
+    }
+
+    void put(String name, V value, long size)
+    {
+      remove(name);
+      _entries.put(name, new Entry<V>(value, size));
+      resident_bytes += size;
+      evict(name);
+    }
+
+    void remove(String name)
+    {
+      Entry<V> e = _entries.remove(name);
+      if (e != null)
+        resident_bytes -= e.size;
+    }
+
+    /** The pinned dictionary is not unloaded. [null] to unpin. */
+    void pin(String name)
+    {
+      _pinned = name;
+      evict(name);
+    }
+
+    /** Unload every dictionaries except the pinned one. */
+    void trim()
+    {
+      // Also unload the dictionaries of size 0, which failed to load.
+      evict_until(-1, _pinned);
+    }
+
+    int count() { return _entries.size(); }
+
+    /** Unload the least recently used dictionaries, except [keep] and the
+        pinned one, until the budget is respected. */
+    void evict(String keep)
+    {
+      evict_until(_budget_bytes, keep);
+    }
+
+    void evict_until(long budget, String keep)
+    {
+      Iterator<Map.Entry<String, Entry<V>>> it = _entries.entrySet().iterator();
+      while (resident_bytes > budget && it.hasNext())
+      {
+        Map.Entry<String, Entry<V>> e = it.next();
+        String name = e.getKey();
+        if (name.equals(keep) || name.equals(_pinned))
+          continue;
+        resident_bytes -= e.getValue().size;
+        it.remove();
+      }
+    }
+  }
 }
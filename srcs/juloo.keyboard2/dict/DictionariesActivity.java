@@ -2,6 +2,9 @@ package juloo.keyboard2.dict;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.text.format.Formatter;
+import android.widget.TextView;
+import juloo.cdict.Cdict;
 import juloo.keyboard2.R;
 
 public class DictionariesActivity extends Activity
@@ -12,4 +15,22 @@ public class DictionariesActivity extends Activity
     super.onCreate(savedInstanceState);
     setContentView(R.layout.dictionaries_activity);
   }
+
+  @Override
+  public void onResume()
+  {
+    super.onResume();
+    refresh_loaded_stats();
+  }
+
+  /** The dictionaries are loaded by the keyboard, which runs in the same
+      process. */
+  void refresh_loaded_stats()
+  {
+    Dictionaries.Cache<Cdict[]> c = Dictionaries.instance(this).get_loaded();
+    TextView v = (TextView)findViewById(R.id.dictionaries_loaded_stats);
+    v.setText(getString(R.string.dictionaries_loaded_stats, c.count(),
+          Formatter.formatShortFileSize(this, c.resident_bytes), c.hits,
+          c.misses));
+  }
 }
@@ -23,7 +23,7 @@ import org.json.JSONException;
 public class CustomExtraKeysPreference extends ListGroupPreference<String>
 {
   /** This pref stores a list of strings encoded as JSON. */
-  static final String KEY = "custom_extra_keys";
+  public static final String KEY = "custom_extra_keys";
   static final ListGroupPreference.Serializer<String> SERIALIZER =
     new ListGroupPreference.StringSerializer();
 
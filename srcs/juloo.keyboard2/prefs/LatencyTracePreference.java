@@ -0,0 +1,80 @@
+package juloo.keyboard2.prefs;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.graphics.Typeface;
+import android.preference.Preference;
+import android.util.AttributeSet;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+import java.io.File;
+import java.io.IOException;
+import juloo.keyboard2.*;
+
+/** Show the report of [LatencyTrace] and allow to export it to a file in
+    the app's external storage directory. */
+public class LatencyTracePreference extends Preference
+{
+  static final String EXPORT_FILE_NAME = "latency_trace.txt";
+
+  public LatencyTracePreference(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+  }
+
+  @Override
+  protected void onClick()
+  {
+    Context ctx = getContext();
+    TextView text = new TextView(ctx);
+    text.setText(LatencyTrace.report());
+    text.setTypeface(Typeface.MONOSPACE);
+    int pad = (int)(16 * ctx.getResources().getDisplayMetrics().density);
+    text.setPadding(pad, pad, pad, pad);
+    text.setTextIsSelectable(true);
+    ScrollView content = new ScrollView(ctx);
+    content.addView(text);
+    new AlertDialog.Builder(ctx)
+      .setTitle(getTitle())
+      .setView(content)
+      .setPositiveButton(R.string.pref_latency_trace_export,
+          new DialogInterface.OnClickListener(){
+            public void onClick(DialogInterface dialog, int which)
+            {
+              export();
+            }
+          })
+      .setNeutralButton(R.string.pref_latency_trace_reset,
+          new DialogInterface.OnClickListener(){
+            public void onClick(DialogInterface dialog, int which)
+            {
+              LatencyTrace.reset();
+            }
+          })
+      .setNegativeButton(android.R.string.cancel, null)
+      .show();
+  }
+
+  void export()
+  {
+    Context ctx = getContext();
+    String msg;
+    try
+    {
+      File dir = ctx.getExternalFilesDir(null);
+      if (dir == null)
+        throw new IOException("External storage is not available");
+      File f = new File(dir, EXPORT_FILE_NAME);
+      LatencyTrace.export(f.getPath());
+      msg = ctx.getString(R.string.pref_latency_trace_exported, f.getPath());
+    }
+    catch (IOException e)
+    {
+      Logs.exn("Failed to export the latency trace", e);
+      msg = ctx.getString(R.string.pref_latency_trace_export_failed);
+    }
+    Toast.makeText(ctx, msg, Toast.LENGTH_LONG).show();
+  }
+}
@@ -0,0 +1,85 @@
+package juloo.keyboard2.prefs;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Typeface;
+import android.preference.Preference;
+import android.util.AttributeSet;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import juloo.keyboard2.*;
+
+/** Load every layouts from XML and from the precompiled [BinaryLayouts] and
+    show the time taken by each. Layouts are not cached. */
+public class LayoutLoadingBenchmarkPreference extends Preference
+{
+  public LayoutLoadingBenchmarkPreference(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+  }
+
+  @Override
+  protected void onClick()
+  {
+    Context ctx = getContext();
+    TextView text = new TextView(ctx);
+    text.setText(run(ctx.getResources()));
+    text.setTypeface(Typeface.MONOSPACE);
+    int pad = (int)(16 * ctx.getResources().getDisplayMetrics().density);
+    text.setPadding(pad, pad, pad, pad);
+    text.setTextIsSelectable(true);
+    ScrollView content = new ScrollView(ctx);
+    content.addView(text);
+    new AlertDialog.Builder(ctx)
+      .setTitle(getTitle())
+      .setView(content)
+      .setPositiveButton(android.R.string.ok, null)
+      .show();
+  }
+
+  static String run(Resources res)
+  {
+    StringBuilder b = new StringBuilder();
+    long t0 = System.nanoTime();
+    BinaryLayouts bin = BinaryLayouts.get(res);
+    long open_ns = System.nanoTime() - t0;
+    if (bin == null)
+      return "Failed to load " + BinaryLayouts.ASSET_NAME;
+    long xml_ns = 0;
+    long bin_ns = 0;
+    int count = 0;
+    int failed = 0;
+    for (String name : LayoutsPreference.get_layout_names(res))
+    {
+      int id = LayoutsPreference.layout_id_of_name(res, name);
+      if (id <= 0)
+        continue;
+      long t1 = System.nanoTime();
+      KeyboardData xml_kb = null;
+      try { xml_kb = KeyboardData.load_xml(res, id); }
+      catch (Exception e) { Logs.exn("Failed to load layout " + name, e); }
+      long t2 = System.nanoTime();
+      KeyboardData bin_kb = bin.load_keyboard(name);
+      long t3 = System.nanoTime();
+      xml_ns += t2 - t1;
+      bin_ns += t3 - t2;
+      count++;
+      if (xml_kb == null || bin_kb == null
+          || xml_kb.rows.size() != bin_kb.rows.size()
+          || xml_kb.keysWidth != bin_kb.keysWidth)
+      {
+        failed++;
+        b.append("Mismatch: ").append(name).append("\n");
+      }
+    }
+    b.append(count).append(" layouts\n");
+    b.append("Open ").append(BinaryLayouts.ASSET_NAME).append(": ")
+      .append(open_ns / 1000).append("us\n");
+    b.append("XML: ").append(xml_ns / 1000).append("us\n");
+    b.append("Binary: ").append(bin_ns / 1000).append("us\n");
+    if (failed > 0)
+      b.append(failed).append(" mismatches\n");
+    return b.toString();
+  }
+}
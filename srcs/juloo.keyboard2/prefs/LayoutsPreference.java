@@ -19,7 +19,7 @@ import org.json.JSONObject;
 
 public class LayoutsPreference extends ListGroupPreference<LayoutsPreference.Layout>
 {
-  static final String KEY = "layouts";
+  public static final String KEY = "layouts";
   static final List<Layout> DEFAULT =
     Collections.singletonList((Layout)new SystemLayout());
   static final ListGroupPreference.Serializer<Layout> SERIALIZER =
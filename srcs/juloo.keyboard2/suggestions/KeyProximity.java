@@ -0,0 +1,138 @@
+package juloo.keyboard2.suggestions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import juloo.keyboard2.KeyValue;
+import juloo.keyboard2.KeyboardData;
+
+/** Distance between the characters in the middle of the keys of a layout,
+    used to rank corrections: a character is likely to be mistyped as the
+    character of a neighboring key. Distances are in key widths and row
+    heights, the layout is not scaled to the screen. Computed once per
+    layout. */
+public final class KeyProximity
+{
+  /** Keys farther away than this are not neighbors. */
+  public static final float MAX_DISTANCE = 1.6f;
+
+  /** Sorted characters that are on the layout. */
+  final char[] _chars;
+  /** Neighbors of the characters in [_chars], closest first. */
+  final char[][] _neighbors;
+  final float[][] _distances;
+
+  KeyProximity(KeyboardData kw)
+  {
+    List<Character> chars = new ArrayList<Character>();
+    List<float[]> centers = new ArrayList<float[]>();
+    float y = 0.f;
+    for (KeyboardData.Row row : kw.rows)
+    {
+      y += row.shift;
+      float x = 0.f;
+      for (KeyboardData.Key key : row.keys)
+      {
+        x += key.shift;
+        KeyValue kv = key.keys[0];
+        if (kv != null && kv.getKind() == KeyValue.Kind.Char
+            && Character.isLetter(kv.getChar())
+            && !chars.contains(kv.getChar()))
+        {
+          chars.add(kv.getChar());
+          centers.add(new float[]{ x + key.width / 2, y + row.height / 2 });
+        }
+        x += key.width;
+      }
+      y += row.height;
+    }
+    int n = chars.size();
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> Character.compare(chars.get(a), chars.get(b)));
+    _chars = new char[n];
+    _neighbors = new char[n][];
+    _distances = new float[n][];
+    for (int i = 0; i < n; i++)
+    {
+      int c = order[i];
+      _chars[i] = chars.get(c);
+      compute_neighbors(i, c, chars, centers);
+    }
+  }
+
+  /** The letters on the layout, sorted. */
+  public char[] chars()
+  {
+    return _chars;
+  }
+
+  /** Characters of the keys near [c], closest first. Returns an empty array
+      if [c] is not on the layout. */
+  public char[] neighbors(char c)
+  {
+    int i = Arrays.binarySearch(_chars, c);
+    return (i < 0) ? NO_NEIGHBORS : _neighbors[i];
+  }
+
+  /** Distances of the characters returned by [neighbors(c)]. */
+  public float[] distances(char c)
+  {
+    int i = Arrays.binarySearch(_chars, c);
+    return (i < 0) ? NO_DISTANCES : _distances[i];
+  }
+
+  public static KeyProximity of(KeyboardData kw)
+  {
+    synchronized (_cache)
+    {
+      KeyProximity p = _cache.get(kw);
+      if (p == null)
+      {
+        p = new KeyProximity(kw);
+        _cache.put(kw, p);
+      }
+      return p;
+    }
+  }
+
+  /** Layouts are cached and are not modified, they can be used as keys. */
+  static final Map<KeyboardData, KeyProximity> _cache =
+    new WeakHashMap<KeyboardData, KeyProximity>();
+
+  static final char[] NO_NEIGHBORS = new char[0];
+  static final float[] NO_DISTANCES = new float[0];
+
+  void compute_neighbors(int i, int c, List<Character> chars,
+      List<float[]> centers)
+  {
+    int n = chars.size();
+    float[] center = centers.get(c);
+    List<Integer> neighbors = new ArrayList<Integer>();
+    final float[] dists = new float[n];
+    for (int j = 0; j < n; j++)
+    {
+      if (j == c)
+        continue;
+      float[] o = centers.get(j);
+      float dx = o[0] - center[0];
+      float dy = o[1] - center[1];
+      dists[j] = (float)Math.sqrt(dx * dx + dy * dy);
+      if (dists[j] <= MAX_DISTANCE)
+        neighbors.add(j);
+    }
+    Collections.sort(neighbors, (a, b) -> Float.compare(dists[a], dists[b]));
+    int nn = neighbors.size();
+    _neighbors[i] = new char[nn];
+    _distances[i] = new float[nn];
+    for (int k = 0; k < nn; k++)
+    {
+      _neighbors[i][k] = chars.get(neighbors.get(k));
+      _distances[i][k] = dists[neighbors.get(k)];
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package juloo.keyboard2.suggestions;
+
+import java.util.ArrayList;
+
+/** Values computed for the prefixes of the word being typed, from the
+    shortest to the longest. While typing, the new word extends the previous
+    one by a character or removes the last character. Entries that are not a
+    prefix of the new word are dropped, which happens when the cursor moves
+    to an other word. */
+public final class PrefixCache<V>
+{
+  /** Longer words are not cached. */
+  static final int MAX_DEPTH = 32;
+
+  final ArrayList<String> _words = new ArrayList<String>();
+  final ArrayList<V> _values = new ArrayList<V>();
+
+  /** Returns the value for [word] or [null]. Drop the entries that are not a
+      prefix of [word]. */
+  public V get(String word)
+  {
+    int n = _words.size();
+    while (n > 0 && !word.startsWith(_words.get(n - 1)))
+    {
+      n--;
+      _words.remove(n);
+      _values.remove(n);
+    }
+    if (n > 0 && _words.get(n - 1).length() == word.length())
+      return _values.get(n - 1);
+    return null;
+  }
+
+  /** The value for the longest prefix of the word passed to the last call to
+      [get] or [null] if there is none. */
+  public V longest_prefix()
+  {
+    int n = _values.size();
+    return (n == 0) ? null : _values.get(n - 1);
+  }
+
+  /** Must be called after [get] returned [null] for [word]. */
+  public void push(String word, V v)
+  {
+    if (_words.size() >= MAX_DEPTH)
+      return;
+    _words.add(word);
+    _values.add(v);
+  }
+
+  public void clear()
+  {
+    _words.clear();
+    _values.clear();
+  }
+
+  public int size() { return _words.size(); }
+}
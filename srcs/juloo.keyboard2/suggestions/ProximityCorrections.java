@@ -0,0 +1,195 @@
+package juloo.keyboard2.suggestions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Search for the words that differ from the typed word by characters that
+    were typed on a neighboring key, or by one missing or extra character.
+    The cost of a correction is the sum of the distances between the keys of
+    the substituted characters, or [EDIT_COST] for a missing or an extra
+    character. Corrections with the lowest cost come first.
+
+    The candidates are built from left to right. A branch is abandoned when
+    its cost exceeds [MAX_COST] or when no word in the dictionary starts with
+    its prefix, which keeps the number of dictionary queries low. A missing
+    character is tried for every letters of the layout, only near the point
+    where the typed word stops being the prefix of a word. */
+public final class ProximityCorrections
+{
+  /** Dictionary queries used by the search. */
+  public static interface Dict
+  {
+    /** Index of [word] in the dictionary or [-1]. */
+    public int find(String word);
+    /** Whether at least one word in the dictionary starts with [prefix]. */
+    public boolean has_prefix(String prefix);
+  }
+
+  /** Checked while searching, the search stops when it returns [true]. */
+  public static interface Cancel
+  {
+    public boolean cancelled();
+  }
+
+  public static final int MAX_SUBSTITUTIONS = 2;
+  /** Maximum sum of the distances of the substitutions, in key widths. Two
+      substitutions with adjacent keys are allowed. */
+  public static final float MAX_COST = 2.5f;
+  /** Cost of a missing or an extra character, which is not combined with
+      substitutions. Ranked after a substitution with an adjacent key. */
+  public static final float EDIT_COST = 1.5f;
+
+  /** Returns the indexes of at most [max_count] words, the best correction
+      first. */
+  public static int[] search(KeyProximity p, Dict d, String word,
+      int max_count)
+  {
+    return search(p, d, word, max_count, NEVER_CANCELLED);
+  }
+
+  /** The results are incomplete if the search is cancelled. */
+  public static int[] search(KeyProximity p, Dict d, String word,
+      int max_count, Cancel cancel)
+  {
+    ProximityCorrections s = new ProximityCorrections(p, d, word, cancel);
+    if (word.length() > 0)
+      s.explore(0, 0, 0.f, 0, false);
+    Collections.sort(s._found);
+    int n = Math.min(max_count, s._found.size());
+    int[] indexes = new int[n];
+    for (int i = 0; i < n; i++)
+      indexes[i] = s._found.get(i).index;
+    return indexes;
+  }
+
+  final KeyProximity _proximity;
+  final Dict _dict;
+  final String _word;
+  final Cancel _cancel;
+  /** The candidate being built, one character longer than [_word] to allow
+      a missing character. */
+  final char[] _buf;
+  final List<Candidate> _found = new ArrayList<Candidate>();
+  /** Length of the longest prefix of [_word] that is the prefix of a word in
+      the dictionary. */
+  int _exact_len = 0;
+
+  ProximityCorrections(KeyProximity p, Dict d, String word, Cancel cancel)
+  {
+    _proximity = p;
+    _dict = d;
+    _word = word;
+    _cancel = cancel;
+    _buf = new char[word.length() + 1];
+  }
+
+  /** The characters before [pos] in [_word] have been consumed and the
+      characters before [len] in [_buf] have been chosen. After a missing or
+      an extra character, [edited] is set and the rest of [_word] must
+      match. */
+  void explore(int pos, int len, float cost, int subs, boolean edited)
+  {
+    if (_cancel.cancelled())
+      return;
+    char c = _word.charAt(pos);
+    boolean exact = !edited && subs == 0;
+    if (exact)
+      _exact_len = pos;
+    _buf[len] = c;
+    visit(pos + 1, len + 1, cost, subs, edited);
+    if (edited)
+      return;
+    if (exact)
+    {
+      // An extra character, the prefix doesn't change.
+      if (pos + 1 < _word.length())
+        explore(pos + 1, len, EDIT_COST, 0, true);
+      else
+        visit(pos + 1, len, EDIT_COST, 0, true);
+      // [_exact_len] is known as the exact prefix is explored first.
+      if (pos + 2 >= _exact_len)
+        insert_missing(pos, len);
+    }
+    if (subs < MAX_SUBSTITUTIONS)
+    {
+      char[] neighbors = _proximity.neighbors(Character.toLowerCase(c));
+      float[] distances = _proximity.distances(Character.toLowerCase(c));
+      for (int i = 0; i < neighbors.length; i++)
+      {
+        float cost_ = cost + distances[i];
+        // Neighbors are sorted by distance.
+        if (cost_ > MAX_COST)
+          break;
+        _buf[len] = neighbors[i];
+        visit(pos + 1, len + 1, cost_, subs + 1, false);
+      }
+    }
+    _buf[len] = c;
+  }
+
+  /** A letter of the layout is missing before [_word[pos]]. */
+  void insert_missing(int pos, int len)
+  {
+    for (char m : _proximity.chars())
+    {
+      _buf[len] = m;
+      visit(pos, len + 1, EDIT_COST, 0, true);
+    }
+  }
+
+  /** The characters before [pos] in [_word] have been consumed and the
+      characters before [len] in [_buf] have been chosen. */
+  void visit(int pos, int len, float cost, int subs, boolean edited)
+  {
+    if (pos == _word.length())
+    {
+      if (subs > 0 || edited)
+        add(_dict.find(new String(_buf, 0, len)), cost);
+      // A missing last character
+      else if (_dict.has_prefix(new String(_buf, 0, len)))
+      {
+        _exact_len = pos;
+        insert_missing(pos, len);
+      }
+      return;
+    }
+    if (!_dict.has_prefix(new String(_buf, 0, len)))
+      return;
+    explore(pos, len, cost, subs, edited);
+  }
+
+  /** A word can be reached in several ways, the cheapest is kept. */
+  void add(int index, float cost)
+  {
+    if (index < 0)
+      return;
+    for (Candidate c : _found)
+      if (c.index == index)
+      {
+        c.cost = Math.min(c.cost, cost);
+        return;
+      }
+    _found.add(new Candidate(index, cost));
+  }
+
+  static final Cancel NEVER_CANCELLED = () -> false;
+
+  static final class Candidate implements Comparable<Candidate>
+  {
+    final int index;
+    float cost;
+
+    Candidate(int i, float c)
+    {
+      index = i;
+      cost = c;
+    }
+
+    @Override
+    public int compareTo(Candidate o)
+    {
+      return Float.compare(cost, o.cost);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package juloo.keyboard2.suggestions;
 
+import android.os.Handler;
 import java.util.Arrays;
 import java.util.List;
 import juloo.cdict.Cdict;
@@ -7,14 +8,24 @@ import juloo.keyboard2.dict.Dictionaries;
 import juloo.keyboard2.Config;
 import juloo.keyboard2.ComposeKey;
 import juloo.keyboard2.ComposeKeyData;
+import juloo.keyboard2.KeyboardData;
+import juloo.keyboard2.LatencyTrace;
 
 /** Keep track of the word being typed and provide suggestions for
-    [CandidatesView]. */
+    [CandidatesView]. Dictionaries are queried on a background thread, only
+    the latest query is computed and its results are published on the main
+    thread. */
 public final class Suggestions
 {
   Callback _callback;
   Config _config;
   boolean _enabled;
+  Handler _main;
+  Worker _worker;
+  /** The dictionaries of the config, re-created when they change. The same
+      objects are passed to the worker so that it can reuse its searches. */
+  CdictLookup _dict = null;
+  CdictLookup _emoji_dict = null;
 
   /** Current suggestions. The best suggestion is at index [0]. */
   public String[] suggestions = new String[MAX_COUNT];
@@ -25,27 +36,50 @@ public final class Suggestions
   /** Number of suggestions in [suggestions]. */
   public static final int MAX_COUNT = 3;
 
-  public Suggestions(Callback c, Config conf)
+  /** Time after which the results are published without waiting for the
+      distance search. */
+  static final long QUERY_BUDGET_MS = 50;
+
+  /** Results are published on the thread of [main]. */
+  public Suggestions(Handler main, Callback c, Config conf)
   {
+    _main = main;
     _callback = c;
     _config = conf;
+    _worker = new Worker();
+    _worker.start();
   }
 
   public void started()
   {
     _enabled = _config.editor_config.should_show_candidates_view;
+    _worker.cancel();
     clear();
   }
 
+  /** Stop the worker thread. */
+  public void destroy()
+  {
+    _worker.interrupt();
+  }
+
   public void currently_typed_word(String word)
   {
     if (!_enabled)
       return;
     if (word.length() < 2 || _config.current_dictionary == null)
+    {
+      _worker.cancel();
       clear();
+      _callback.set_suggestions(this);
+    }
     else
-      query_suggestions(word);
-    _callback.set_suggestions(this);
+    {
+      _dict = CdictLookup.of(_dict, _config.current_dictionary);
+      _emoji_dict = CdictLookup.of(_emoji_dict, _config.emoji_dictionary);
+      _worker.query(new Query(word, _dict, _emoji_dict,
+            _callback.current_text_layout()));
+    }
   }
 
   void clear()
@@ -56,50 +90,361 @@ public final class Suggestions
     emoji_suggestion = null;
   }
 
-  int query_suggestions(String word)
+  /** Called on the main thread. The results of a query are dropped if an
+      other query was made since. The partial results are dropped if the
+      complete results are already published, the complete results replace
+      the partial results. */
+  void publish(Query q, Result r, boolean partial)
+  {
+    if (_worker.is_stale(q) || (partial && q.published))
+      return;
+    if (!q.published)
+      LatencyTrace.end(LatencyTrace.SUGGESTIONS, q.trace_start);
+    q.published = true;
+    clear();
+    System.arraycopy(r.suggestions, 0, suggestions, 0, r.count);
+    count = r.count;
+    emoji_suggestion = r.emoji;
+    _callback.set_suggestions(this);
+  }
+
+  /** Post the results of [q] to the main thread. */
+  void post_result(final Query q, final Result r, final boolean partial,
+      long delay_ms)
+  {
+    Runnable publish = new Runnable()
+      {
+        public void run() { publish(q, r, partial); }
+      };
+    if (delay_ms > 0)
+      _main.postDelayed(publish, delay_ms);
+    else
+      _main.post(publish);
+  }
+
+  static final class Result
+  {
+    public final String[] suggestions = new String[MAX_COUNT];
+    public int count = 0;
+    public String emoji = null;
+  }
+
+  /** A query for the word being typed. The dictionaries are taken from the
+      config when the query is made as they might change on the main thread
+      while the query is running. */
+  final class Query
+  {
+    final String word;
+    final Dict dict;
+    /** Might be [null]. */
+    final Dict emoji_dict;
+    /** Might be [null]. */
+    final KeyboardData layout;
+    /** Set by [Worker.query]. */
+    int generation;
+    /** Whether results have been published. Only accessed on the main
+        thread. */
+    boolean published = false;
+    /** See [LatencyTrace.SUGGESTIONS]. */
+    final long trace_start = LatencyTrace.start();
+
+    Query(String w, Dict d, Dict e, KeyboardData l)
+    {
+      word = w;
+      dict = d;
+      emoji_dict = e;
+      layout = l;
+    }
+
+    /** Called on the worker thread. The search for corrections is the
+        slowest part of the query. If it doesn't finish within
+        [QUERY_BUDGET_MS], the results without it are published first and
+        are replaced by the complete results later. */
+    void run()
+    {
+      long start = System.nanoTime();
+      Search s = _worker.search(word, dict, emoji_dict, layout);
+      if (s.result != null)
+      {
+        post_result(this, s.result, false, 0);
+        return;
+      }
+      boolean first_char_upper = Character.isUpperCase(word.charAt(0));
+      int i = (s.found != null) ? 1 : 0;
+      // Disable distance search for small words
+      boolean search_distance = !(s.word.length() < 3 || i + 1 >= MAX_COUNT);
+      Result partial = results(s.found, s.suffixes, NO_RESULTS, s.emoji,
+          first_char_upper);
+      if (!search_distance)
+      {
+        s.result = partial;
+        post_result(this, partial, false, 0);
+        return;
+      }
+      if (_worker.is_stale(this))
+        return;
+      post_result(this, partial, true,
+          Math.max(1, QUERY_BUDGET_MS - elapsed_ms(start)));
+      int[] dist = corrections(s.word, start);
+      if (dist == null)
+        return;
+      // Kept even if stale, the word might be typed again after a backspace.
+      s.result = results(s.found, s.suffixes, dist, s.emoji, first_char_upper);
+      if (_worker.is_stale(this))
+        return;
+      post_result(this, s.result, false, 0);
+    }
+
+    /** Corrections that take the position of the keys into account are
+        preferred. The edit distance search is only used when the layout is
+        not known or when no correction is found. It can't be interrupted
+        and is skipped once [QUERY_BUDGET_MS] is spent. Returns [null] if the
+        query became stale, the search is then incomplete. */
+    int[] corrections(String w, long start)
+    {
+      int[] c = NO_RESULTS;
+      if (layout != null)
+        c = ProximityCorrections.search(KeyProximity.of(layout), dict, w,
+            MAX_COUNT, () -> _worker.is_stale(this));
+      if (_worker.is_stale(this))
+        return null;
+      if (c.length > 0 || elapsed_ms(start) >= QUERY_BUDGET_MS)
+        return c;
+      return dict.distance(w, 1, MAX_COUNT);
+    }
+
+    Result results(String found, int[] suffixes, int[] dist, String emoji,
+        boolean first_char_upper)
+    {
+      Result res = new Result();
+      String[] s = res.suggestions;
+      int i = 0;
+      if (found != null)
+        s[i++] = found;
+      for (int j = 0; j < MAX_COUNT && i < MAX_COUNT; j++)
+      {
+        if (suffixes.length > j)
+          s[i++] = dict.word(suffixes[j]);
+        if (dist.length > j && i < MAX_COUNT)
+          s[i++] = dict.word(dist[j]);
+      }
+      if (first_char_upper)
+        capitalize_results(s, i);
+      res.count = i;
+      res.emoji = emoji;
+      return res;
+    }
+  }
+
+  /** The dictionary queries made by the worker. */
+  public static interface Dict extends ProximityCorrections.Dict
+  {
+    public String word(int index);
+    /** Indexes of at most [count] words that start with [prefix]. */
+    public int[] suffixes(String prefix, int count);
+    /** Indexes of at most [count] words at an edit distance of at most
+        [max_dist] from [word]. */
+    public int[] distance(String word, int max_dist, int count);
+  }
+
+  /** Queries to a [Cdict]. The result of the last lookup is reused when the
+      same word is looked up again, by [find] and [suffixes] for example.
+      Only used on the worker thread. */
+  static final class CdictLookup implements Dict
+  {
+    final Cdict dict;
+    String _last_word = null;
+    Cdict.Result _last_result = null;
+
+    CdictLookup(Cdict d) { dict = d; }
+
+    /** Returns [prev] if it is a lookup of [d]. [null] if [d] is [null]. */
+    static CdictLookup of(CdictLookup prev, Cdict d)
+    {
+      if (d == null)
+        return null;
+      return (prev != null && prev.dict == d) ? prev : new CdictLookup(d);
+    }
+
+    Cdict.Result lookup(String word)
+    {
+      if (!word.equals(_last_word))
+      {
+        _last_result = dict.find(word);
+        _last_word = word;
+      }
+      return _last_result;
+    }
+
+    public int find(String word)
+    {
+      Cdict.Result r = lookup(word);
+      return r.found ? r.index : -1;
+    }
+
+    public boolean has_prefix(String prefix)
+    {
+      Cdict.Result r = lookup(prefix);
+      return r.found || dict.suffixes(r, 1).length > 0;
+    }
+
+    public String word(int index) { return dict.word(index); }
+
+    public int[] suffixes(String prefix, int count)
+    {
+      return dict.suffixes(lookup(prefix), count);
+    }
+
+    public int[] distance(String word, int max_dist, int count)
+    {
+      return dict.distance(word, max_dist, count);
+    }
+  }
+
+  /** The result of the search for a word in the dictionaries. */
+  static final class Search
   {
-    Cdict dict = _config.current_dictionary;
-    boolean first_char_upper = Character.isUpperCase(word.charAt(0));
-    word = apply_substitutions(word);
-    Cdict.Result r = dict.find(word);
-    int i = 0;
-    if (r.found)
-      suggestions[i++] = dict.word(r.index);
-    int[] suffixes = dict.suffixes(r, MAX_COUNT);
-    // Disable distance search for small words
-    int[] dist = (word.length() < 3 || i + 1 >= MAX_COUNT) ? NO_RESULTS :
-      dict.distance(word, 1, MAX_COUNT);
-    for (int j = 0; j < MAX_COUNT && i < MAX_COUNT; j++)
+    /** The word after substitutions. */
+    public final String word;
+    public String found = null;
+    public int[] suffixes = NO_RESULTS;
+    public String emoji = null;
+    /** No word in the dictionary starts with [word]. */
+    public boolean no_prefix = false;
+    public boolean no_emoji_prefix = false;
+    /** The complete results, including the distance search. [null] if the
+        distance search hasn't run. */
+    public Result result = null;
+
+    Search(String w) { word = w; }
+  }
+
+  /** Compute the queries on a background thread. A new query replaces the
+      pending one and makes the running one stale. */
+  static final class Worker extends Thread
+  {
+    Query _pending = null;
+    /** Incremented when a query is made or cancelled. Only written while
+        holding the lock. */
+    volatile int _generation = 0;
+
+    /** Searches for the previously typed words, only accessed on the worker
+        thread. Valid for [_searches_dict], [_searches_emoji_dict] and
+        [_searches_layout]. */
+    final PrefixCache<Search> _searches = new PrefixCache<Search>();
+    Dict _searches_dict = null;
+    Dict _searches_emoji_dict = null;
+    KeyboardData _searches_layout = null;
+
+    Worker()
+    {
+      super("Suggestions");
+      setDaemon(true);
+    }
+
+    synchronized void query(Query q)
+    {
+      q.generation = ++_generation;
+      _pending = q;
+      notify();
+    }
+
+    /** Drop the pending query and the results of the running one. */
+    synchronized void cancel()
+    {
+      _generation++;
+      _pending = null;
+    }
+
+    boolean is_stale(Query q)
+    {
+      return q.generation != _generation;
+    }
+
+    /** The search for [word]. Reuse the search made for the same word,
+        when a character was removed for example. When no word starts with
+        the previous word, the dictionary is not queried. [layout] is used
+        by the distance search, which is cached in [Search.result]. */
+    Search search(String word, Dict dict, Dict emoji_dict,
+        KeyboardData layout)
+    {
+      if (dict != _searches_dict || emoji_dict != _searches_emoji_dict
+          || layout != _searches_layout)
+      {
+        _searches.clear();
+        _searches_dict = dict;
+        _searches_emoji_dict = emoji_dict;
+        _searches_layout = layout;
+      }
+      Search s = _searches.get(word);
+      if (s != null)
+        return s;
+      Search prefix = _searches.longest_prefix();
+      s = new Search(apply_substitutions(word));
+      if (prefix == null || !prefix.no_prefix)
+      {
+        int index = dict.find(s.word);
+        if (index >= 0)
+          s.found = dict.word(index);
+        s.suffixes = dict.suffixes(s.word, MAX_COUNT);
+        s.no_prefix = index < 0 && s.suffixes.length == 0;
+      }
+      else
+        s.no_prefix = true;
+      if (prefix == null || !prefix.no_emoji_prefix)
+      {
+        s.emoji = query_emoji(emoji_dict, s.word);
+        // Emojis are not searched for short words
+        s.no_emoji_prefix = s.emoji == null && s.word.length() >= 3;
+      }
+      else
+        s.no_emoji_prefix = true;
+      _searches.push(word, s);
+      return s;
+    }
+
+    synchronized Query take() throws InterruptedException
     {
-      if (suffixes.length > j)
-        suggestions[i++] = dict.word(suffixes[j]);
-      if (dist.length > j && i < MAX_COUNT)
-        suggestions[i++] = dict.word(dist[j]);
+      while (_pending == null)
+        wait();
+      Query q = _pending;
+      _pending = null;
+      return q;
     }
-    if (first_char_upper)
-      capitalize_results();
-    emoji_suggestion = query_emoji(word); // word with substitutions applied
-    count = i;
-    return i;
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        Query q;
+        try { q = take(); }
+        catch (InterruptedException _e) { return; }
+        q.run();
+      }
+    }
+  }
+
+  static long elapsed_ms(long start)
+  {
+    return (System.nanoTime() - start) / 1000000;
   }
 
-  void capitalize_results()
+  static void capitalize_results(String[] s, int count)
   {
     for (int i = 0; i < count; i++)
-      suggestions[i] = suggestions[i].substring(0, 1).toUpperCase()
-        + suggestions[i].substring(1);
+      s[i] = s[i].substring(0, 1).toUpperCase() + s[i].substring(1);
   }
 
-  String query_emoji(String word)
+  static String query_emoji(Dict dict, String word)
   {
-    Cdict dict = _config.emoji_dictionary;
     // Disable emoji suggestion for short words
     if (dict == null || word.length() < 3)
       return null;
-    Cdict.Result r = dict.find(word);
-    if (r.found)
-      return dict.word(r.index);
-    int[] s = dict.suffixes(r, 1);
+    int index = dict.find(word);
+    if (index >= 0)
+      return dict.word(index);
+    int[] s = dict.suffixes(word, 1);
     if (s.length > 0)
       return dict.word(s[0]);
     return null;
@@ -108,7 +453,7 @@ public final class Suggestions
   /** Apply the same substitutions that were used when building the
       dictionaries to find word aliases. This catches missing diacritics for
       example. */
-  String apply_substitutions(String w)
+  static String apply_substitutions(String w)
   {
     StringBuilder b = new StringBuilder(w);
     int len = w.length();
@@ -126,5 +471,8 @@ public final class Suggestions
   public static interface Callback
   {
     public void set_suggestions(Suggestions suggestions);
+    /** The layout used to type text, the special layouts are ignored.
+        Might be [null]. */
+    public KeyboardData current_text_layout();
   }
 }
@@ -0,0 +1,106 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import static org.junit.Assert.*;
+
+public class BinaryLayoutsTest
+{
+  public BinaryLayoutsTest() {}
+
+  /** Generated by [compile_layouts.py] before the tests are run. */
+  static final File LAYOUTS_BIN = new File("build/generated-assets/layouts.bin");
+
+  @Test
+  public void same_as_xml() throws Exception
+  {
+    BinaryLayouts bin = new BinaryLayouts(
+        ByteBuffer.wrap(Files.readAllBytes(LAYOUTS_BIN.toPath())));
+    for (File f : TestUtils.layout_files())
+    {
+      String name = f.getName().replace(".xml", "");
+      KeyboardData kb = bin.load_keyboard(name);
+      assertNotNull(name, kb);
+      assert_same_keyboard(name, TestUtils.load_layout(f), kb);
+    }
+    // The keyboards and rows in [res/xml] are also compiled.
+    int count = 0;
+    for (File f : new File("res/xml").listFiles())
+    {
+      String name = f.getName().replace(".xml", "");
+      switch (root_tag(f))
+      {
+        case "keyboard":
+          assert_same_keyboard(name,
+              KeyboardData.parse_keyboard(TestUtils.xml_parser(f)),
+              bin.load_keyboard(name));
+          count++;
+          break;
+        case "row":
+          assert_same_row(name,
+              KeyboardData.parse_row(TestUtils.xml_parser(f)),
+              bin.load_row(name));
+          count++;
+          break;
+      }
+    }
+    assertTrue(count > 0);
+  }
+
+  static String root_tag(File f) throws Exception
+  {
+    XmlPullParser parser = TestUtils.xml_parser(f);
+    while (parser.next() != XmlPullParser.START_TAG)
+      continue;
+    return parser.getName();
+  }
+
+  static void assert_same_keyboard(String name, KeyboardData exp,
+      KeyboardData got)
+  {
+    assertNotNull(name, got);
+    assertEquals(name, exp.rows.size(), got.rows.size());
+    for (int i = 0; i < exp.rows.size(); i++)
+      assert_same_row(name + " row " + i, exp.rows.get(i), got.rows.get(i));
+    assertEquals(name, exp.keysWidth, got.keysWidth, 0.f);
+    assertEquals(name, exp.keysHeight, got.keysHeight, 0.f);
+    assertEquals(name, exp.script, got.script);
+    assertEquals(name, exp.numpad_script, got.numpad_script);
+    assertEquals(name, exp.name, got.name);
+    assertEquals(name, exp.bottom_row, got.bottom_row);
+    assertEquals(name, exp.embedded_number_row, got.embedded_number_row);
+    assertEquals(name, exp.locale_extra_keys, got.locale_extra_keys);
+    if (exp.modmap == null)
+      assertNull(name, got.modmap);
+    else
+      assertArrayEquals(name, exp.modmap._map, got.modmap._map);
+  }
+
+  static void assert_same_row(String name, KeyboardData.Row exp,
+      KeyboardData.Row got)
+  {
+    assertNotNull(name, got);
+    assertEquals(name, exp.height, got.height, 0.f);
+    assertEquals(name, exp.shift, got.shift, 0.f);
+    assertEquals(name, exp.keysWidth, got.keysWidth, 0.f);
+    assertEquals(name, exp.keys.size(), got.keys.size());
+    for (int i = 0; i < exp.keys.size(); i++)
+    {
+      String k = name + " key " + i;
+      KeyboardData.Key a = exp.keys.get(i);
+      KeyboardData.Key b = got.keys.get(i);
+      assertArrayEquals(k, a.keys, b.keys);
+      assertEquals(k, a.anticircle, b.anticircle);
+      for (int j = 0; j < a.keys.length; j++)
+        assertEquals(k, a.keyHasFlag(j, KeyboardData.Key.F_LOC),
+            b.keyHasFlag(j, KeyboardData.Key.F_LOC));
+      assertEquals(k, a.width, b.width, 0.f);
+      assertEquals(k, a.shift, b.shift, 0.f);
+      assertEquals(k, a.indication, b.indication);
+      assertEquals(k, a.role, b.role);
+    }
+  }
+}
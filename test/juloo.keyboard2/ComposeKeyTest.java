@@ -1,5 +1,10 @@
 package juloo.keyboard2;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import juloo.keyboard2.ComposeKey;
 import juloo.keyboard2.ComposeKeyData;
 import juloo.keyboard2.KeyValue;
@@ -66,6 +71,30 @@ public class ComposeKeyTest
     assertEquals(apply(apply(" "), key("space")), key("nbsp"));
   }
 
+  @Test
+  /* States with a hash table must give the same result as the binary
+     search on every chars. */
+  public void denseStates() throws Exception
+  {
+    int dense_count = 0;
+    for (int state : intermediate_states())
+    {
+      if (data().states.get(state) < ComposeKey.DENSE_HEADER)
+        continue;
+      dense_count++;
+      for (int c = 0; c <= 0xFFFF; c++)
+      {
+        int expected = binary_search(state, (char)c);
+        int found = ComposeKey.find_edge(data(), state, (char)c);
+        if (expected < 0)
+          assertTrue(found < 0);
+        else
+          assertEquals(expected, found);
+      }
+    }
+    assertTrue(dense_count > 0);
+  }
+
   KeyValue apply(String seq)
   {
     return ComposeKey.apply(ComposeKeyData.compose, seq);
@@ -82,4 +111,68 @@ public class ComposeKeyTest
       return null;
     return ComposeKey.apply(prev.getPendingCompose(), next);
   }
+
+  /** The initial state of each compose files. */
+  static List<Integer> entry_states() throws Exception
+  {
+    List<Integer> states = new ArrayList<Integer>();
+    for (Field f : ComposeKeyData.class.getFields())
+      if (f.getType() == int.class && Modifier.isStatic(f.getModifiers()))
+        states.add(f.getInt(null));
+    assertTrue(states.size() > 10);
+    return states;
+  }
+
+  /** Every intermediate states reachable from [entry_states]. */
+  static List<Integer> intermediate_states() throws Exception
+  {
+    CharBuffer states = data().states;
+    CharBuffer edges = data().edges;
+    boolean[] seen = new boolean[states.limit()];
+    List<Integer> todo = entry_states();
+    List<Integer> result = new ArrayList<Integer>();
+    while (!todo.isEmpty())
+    {
+      int state = todo.remove(todo.size() - 1);
+      if (seen[state])
+        continue;
+      seen[state] = true;
+      result.add(state);
+      for (int i = 1; i < edges.get(state); i++)
+      {
+        int next = edges.get(state + i);
+        int h = states.get(next);
+        if (h == 0 || (h >= ComposeKey.DENSE_HEADER && h != 0xFFFF))
+          todo.add(next);
+      }
+    }
+    return result;
+  }
+
+  static ComposeKey.Data data()
+  {
+    ComposeKey.Data d = ComposeKey.data();
+    assertNotSame(ComposeKey.Data.EMPTY, d);
+    return d;
+  }
+
+  /** Search without using the hash tables. */
+  static int binary_search(int state, char c)
+  {
+    ComposeKey.Data d = data();
+    int lo = state + 1;
+    int hi = state + d.edges.get(state) - 1;
+    while (lo <= hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      char m = d.states.get(mid);
+      if (m == c)
+        return mid;
+      if (m < c)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return -1;
+  }
 }
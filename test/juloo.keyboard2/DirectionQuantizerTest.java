@@ -0,0 +1,152 @@
+package juloo.keyboard2;
+
+import java.util.Random;
+import juloo.keyboard2.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DirectionQuantizerTest
+{
+  public DirectionQuantizerTest() {}
+
+  static final float[] RADIUSES = new float[]{
+    0.001f, 0.5f, 1.f, 7.f, 23.5f, 100.f, 1234.5f, 100000.f
+  };
+
+  @Test
+  public void all_sectors()
+  {
+    int steps = 16 * 1000;
+    int[] seen = new int[16];
+    for (float r : RADIUSES)
+      for (int i = 0; i < steps; i++)
+      {
+        double a = i * 2 * Math.PI / steps;
+        float dx = (float)(r * Math.cos(a));
+        float dy = (float)(r * Math.sin(a));
+        int d = Utils.check(dx, dy);
+        seen[d]++;
+      }
+    for (int d = 0; d < 16; d++)
+      assertTrue("Direction " + d + " never seen", seen[d] > 0);
+  }
+
+  @Test
+  public void near_boundaries()
+  {
+    for (float r : RADIUSES)
+      for (int b = 0; b < 16; b++)
+      {
+        double a = b * Math.PI / 8;
+        float dx = (float)(r * Math.cos(a));
+        float dy = (float)(r * Math.sin(a));
+        // Walk a few floats on each side of the boundary.
+        float x = dx;
+        float y = dy;
+        for (int i = 0; i < 8; i++)
+        {
+          Utils.check(x, dy);
+          Utils.check(dx, y);
+          Utils.check(x, y);
+          x = Math.nextUp(x);
+          y = Math.nextUp(y);
+        }
+        x = dx;
+        y = dy;
+        for (int i = 0; i < 8; i++)
+        {
+          Utils.check(x, dy);
+          Utils.check(dx, y);
+          Utils.check(x, y);
+          x = Math.nextDown(x);
+          y = Math.nextDown(y);
+        }
+      }
+  }
+
+  @Test
+  public void axes_and_diagonals()
+  {
+    for (float r : RADIUSES)
+    {
+      Utils.check(r, 0.f);
+      Utils.check(-r, 0.f);
+      Utils.check(0.f, r);
+      Utils.check(0.f, -r);
+      Utils.check(r, r);
+      Utils.check(-r, r);
+      Utils.check(r, -r);
+      Utils.check(-r, -r);
+      Utils.check(r, -0.f);
+      Utils.check(-r, -0.f);
+    }
+    Utils.check(0.f, 0.f);
+  }
+
+  @Test
+  public void random_vectors()
+  {
+    Random rnd = new Random(42);
+    for (int i = 0; i < 1000000; i++)
+    {
+      float dx = (rnd.nextFloat() - 0.5f) * 4000.f;
+      float dy = (rnd.nextFloat() - 0.5f) * 4000.f;
+      Utils.check(dx, dy);
+    }
+    // Touch coordinates are often rounded to integers.
+    for (int dx = -60; dx <= 60; dx++)
+      for (int dy = -60; dy <= 60; dy++)
+        Utils.check(dx, dy);
+  }
+
+  @Test
+  public void hysteresis()
+  {
+    float r = 100.f;
+    for (int b = 0; b < 16; b++)
+    {
+      // Boundary between directions [d - 1] and [d].
+      int d = (b + 12) % 16;
+      int prev = (d + 15) % 16;
+      double a = b * Math.PI / 8;
+      double margin = DirectionQuantizer.HYSTERESIS;
+      // Just past the boundary, the previous direction is kept.
+      assertEquals(prev, Utils.quantize_at(r, a + margin / 2, prev));
+      assertEquals(d, Utils.quantize_at(r, a - margin / 2, d));
+      // Past the margin, the new direction is returned.
+      assertEquals(d, Utils.quantize_at(r, a + margin * 2, prev));
+      assertEquals(prev, Utils.quantize_at(r, a - margin * 2, d));
+      // Without a previous direction, the result is not affected.
+      assertEquals(d, Utils.quantize_at(r, a + margin / 2, -1));
+      // Non-adjacent directions are not affected.
+      assertEquals(d, Utils.quantize_at(r, a + margin / 2, (d + 8) % 16));
+    }
+  }
+
+  static class Utils
+  {
+    /** The formula used by [Pointers.onTouchMove] before
+        [DirectionQuantizer]. */
+    static int reference(float dx, float dy)
+    {
+      double a = Math.atan2(dy, dx) + Math.PI;
+      return ((int)(a * 8 / Math.PI) + 12) % 16;
+    }
+
+    static int check(float dx, float dy)
+    {
+      int expected = reference(dx, dy);
+      assertEquals("dx=" + dx + " dy=" + dy, expected,
+          DirectionQuantizer.direction(dx, dy));
+      return expected;
+    }
+
+    /** [a] is an angle in the [atan2(dy, dx) + PI] space. */
+    static int quantize_at(float r, double a, int prev)
+    {
+      float dx = (float)(-r * Math.cos(a));
+      float dy = (float)(-r * Math.sin(a));
+      return DirectionQuantizer.direction(dx, dy, prev);
+    }
+  }
+}
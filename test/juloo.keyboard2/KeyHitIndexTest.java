@@ -0,0 +1,116 @@
+package juloo.keyboard2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import juloo.keyboard2.*;
+import org.junit.Test;
+import static juloo.keyboard2.TestUtils.*;
+import static org.junit.Assert.*;
+
+public class KeyHitIndexTest
+{
+  public KeyHitIndexTest() {}
+
+  static final float MARGIN_LEFT = 7.f;
+  static final float MARGIN_TOP = 3.f;
+  static final float KEY_WIDTH = 10.f;
+  static final float ROW_HEIGHT = 20.f;
+
+  @Test
+  public void same_as_linear_search()
+  {
+    KeyboardData kw = Utils.keyboard();
+    KeyHitIndex index = new KeyHitIndex(kw, MARGIN_LEFT, MARGIN_TOP,
+        KEY_WIDTH, ROW_HEIGHT);
+    for (float y = -5.f; y < 100.f; y += 0.5f)
+      for (float x = -5.f; x < 60.f; x += 0.25f)
+        assertSame(Utils.linear_key_at(kw, x, y), index.key_at(x, y));
+  }
+
+  @Test
+  public void nearest_key()
+  {
+    KeyboardData kw = Utils.keyboard();
+    KeyHitIndex index = new KeyHitIndex(kw, MARGIN_LEFT, MARGIN_TOP,
+        KEY_WIDTH, ROW_HEIGHT);
+    List<KeyboardData.Key> row0 = kw.rows.get(0).keys;
+    List<KeyboardData.Key> row1 = kw.rows.get(1).keys;
+    List<KeyboardData.Key> row2 = kw.rows.get(2).keys;
+    // Exact hit
+    assertSame(row0.get(0), index.nearest_key(10.f, 10.f));
+    // Left margin
+    assertSame(row0.get(0), index.nearest_key(0.f, 10.f));
+    // Gap between [a] and [b], spanning 17 to 22
+    assertSame(row0.get(0), index.nearest_key(18.f, 10.f));
+    assertSame(row0.get(1), index.nearest_key(21.f, 10.f));
+    // Right of the last key
+    assertSame(row0.get(2), index.nearest_key(500.f, 10.f));
+    // Above and below the keyboard
+    assertSame(row0.get(1), index.nearest_key(25.f, -50.f));
+    assertSame(row2.get(0), index.nearest_key(10.f, 500.f));
+    // Row shift belongs to the row below
+    assertSame(row1.get(0), index.nearest_key(10.f, 30.f));
+  }
+
+  static class Utils
+  {
+    static KeyboardData.Key key(float width, float shift, String name)
+    {
+      KeyValue[] ks = new KeyValue[9];
+      ks[0] = KeyValue.getKeyByName(name);
+      return new KeyboardData.Key(ks, null, 0, width, shift, null,
+          KeyboardData.Key.Role.Normal);
+    }
+
+    static KeyboardData.Row row(float height, float shift, KeyboardData.Key... keys)
+    {
+      return new KeyboardData.Row(new ArrayList<KeyboardData.Key>(Arrays.asList(keys)),
+          height, shift);
+    }
+
+    static KeyboardData keyboard()
+    {
+      List<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>();
+      rows.add(row(1.f, 0.f, key(1.f, 0.f, "a"), key(1.f, 0.5f, "b"),
+            key(2.f, 0.f, "c")));
+      rows.add(row(0.5f, 0.5f, key(1.5f, 0.f, "d"), key(0.f, 0.f, "e"),
+            key(1.f, 1.f, "f")));
+      rows.add(row(1.f, 1.f, key(4.f, 0.f, "g")));
+      return new KeyboardData(rows, 4.5f, null, null, null, "test", false,
+          false, false);
+    }
+
+    /** The algorithm used by [Keyboard2View] before [KeyHitIndex]. */
+    static KeyboardData.Key linear_key_at(KeyboardData kw, float tx, float ty)
+    {
+      float y = MARGIN_TOP;
+      KeyboardData.Row row = null;
+      if (ty < y)
+        return null;
+      for (KeyboardData.Row r : kw.rows)
+      {
+        y += (r.shift + r.height) * ROW_HEIGHT;
+        if (ty < y)
+        {
+          row = r;
+          break;
+        }
+      }
+      float x = MARGIN_LEFT;
+      if (row == null || tx < x)
+        return null;
+      for (KeyboardData.Key key : row.keys)
+      {
+        float xLeft = x + key.shift * KEY_WIDTH;
+        float xRight = xLeft + key.width * KEY_WIDTH;
+        if (tx < xLeft)
+          return null;
+        if (tx < xRight)
+          return key;
+        x = xRight;
+      }
+      return null;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package juloo.keyboard2;
 
+import java.util.ArrayList;
+import java.util.List;
 import juloo.keyboard2.KeyModifier;
 import juloo.keyboard2.KeyValue;
 import org.junit.Test;
@@ -17,4 +19,58 @@ public class KeyModifierTest
     assertEquals(eval("compose", "-", "space"), str("~"));
     assertEquals(eval("compose", "space", "-"), str("~"));
   }
+
+  @Test
+  public void cached_results() throws Exception
+  {
+    for (KeyboardData kw : TestUtils.layouts())
+    {
+      KeyModifier.set_modmap(kw.modmap);
+      for (KeyValue k : keys(kw))
+        for (KeyValue.Modifier m : KeyValue.Modifier.values())
+        {
+          KeyValue expected = KeyModifier.modify_uncached(k, m);
+          assertEquals(k + " " + m, expected, KeyModifier.modify(k, m));
+          assertEquals(k + " " + m, expected, KeyModifier.modify(k, m));
+        }
+    }
+    KeyModifier.set_modmap(null);
+  }
+
+  @Test
+  /* Replay every layouts under every modifiers twice, as if the keyboard was
+     drawn twice, and check the hit rate of the cache. */
+  public void cache_hit_rate() throws Exception
+  {
+    KeyModifier.Cache cache = KeyModifier._cache;
+    for (KeyboardData kw : TestUtils.layouts())
+    {
+      KeyModifier.set_modmap(kw.modmap);
+      // Layouts are measured independently.
+      cache.clear();
+      List<KeyValue> keys = keys(kw);
+      long misses = 0;
+      for (int pass = 0; pass < 2; pass++)
+      {
+        misses = cache.misses;
+        for (KeyValue.Modifier m : KeyValue.Modifier.values())
+          for (KeyValue k : keys)
+            KeyModifier.modify(k, m);
+      }
+      // The second pass must only hit.
+      assertEquals(kw.name, misses, cache.misses);
+    }
+    KeyModifier.set_modmap(null);
+  }
+
+  static List<KeyValue> keys(KeyboardData kw)
+  {
+    List<KeyValue> keys = new ArrayList<KeyValue>();
+    for (KeyboardData.Row row : kw.rows)
+      for (KeyboardData.Key key : row.keys)
+        for (KeyValue k : key.keys)
+          if (k != null)
+            keys.add(k);
+    return keys;
+  }
 }
@@ -0,0 +1,117 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import static org.junit.Assert.*;
+
+/** Compare [KeyValueParser] with the previous regex-based parser on every
+    key definitions from [srcs/layouts]. */
+public class KeyValueParserCorpusTest
+{
+  static final String[] KEY_ATTRS = new String[]{
+    "key0", "key1", "key2", "key3", "key4", "key5", "key6", "key7", "key8",
+    "c", "nw", "ne", "sw", "se", "w", "e", "n", "s", "anticircle"
+  };
+
+  static List<String> _corpus = null;
+
+  public KeyValueParserCorpusTest() {}
+
+  @Test
+  public void same_result_on_layouts() throws Exception
+  {
+    List<String> corpus = corpus();
+    assertTrue(corpus.size() > 1000);
+    for (String def : corpus)
+      same_result(def);
+  }
+
+  @Test
+  /* Truncated definitions exercise the error paths. */
+  public void same_errors_on_prefixes() throws Exception
+  {
+    for (String def : corpus())
+      for (int i = 1; i < def.length(); i++)
+        same_result(def.substring(0, i));
+  }
+
+  @Test
+  public void same_errors() throws Exception
+  {
+    for (String def : new String[]{
+      "symbol:", "a:'", "a:b,", "a:b,,", "a:,", "a:b'c", "a:keyevent:",
+      "a:keyevent:x", "a:keyevent:\n", "a:b\\", "a:'b\\", "a:\\\n",
+      ":", ":str", ":str:", ":str:foo", ":str foo='a':'b'", ":str flags='x':'b'",
+      ":str flags='dim' :'b'", ":char:ab", ":char:", ":keyevent:a", ":foo:'a'",
+      ":str symbol='a\\'b':'c\\'d'", ":str symbol='a\\b':'c'"
+    })
+      same_result(def);
+  }
+
+  /** Definitions that are handled by [KeyValueParser], which excludes
+      special key names. */
+  static List<String> corpus() throws Exception
+  {
+    if (_corpus != null)
+      return _corpus;
+    List<String> defs = new ArrayList<String>();
+    DocumentBuilder builder =
+      DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    for (File f : TestUtils.layout_files())
+    {
+      Element root = builder.parse(f).getDocumentElement();
+      NodeList keys = root.getElementsByTagName("key");
+      for (int i = 0; i < keys.getLength(); i++)
+      {
+        Element key = (Element)keys.item(i);
+        for (String attr : KEY_ATTRS)
+          add_def(defs, key.getAttribute(attr));
+      }
+      for (String tag : new String[]{ "shift", "fn", "ctrl" })
+      {
+        NodeList mappings = root.getElementsByTagName(tag);
+        for (int i = 0; i < mappings.getLength(); i++)
+        {
+          Element m = (Element)mappings.item(i);
+          add_def(defs, m.getAttribute("a"));
+          add_def(defs, m.getAttribute("b"));
+        }
+      }
+    }
+    _corpus = defs;
+    return defs;
+  }
+
+  static void add_def(List<String> defs, String def)
+  {
+    if (def.startsWith("loc "))
+      def = def.substring(4);
+    if (def.equals("") || KeyValue.getSpecialKeyByName(def) != null)
+      return;
+    defs.add(def);
+  }
+
+  /** Result of the new parser or its error message. */
+  static Object parse(String def)
+  {
+    try { return KeyValueParser.parse(def); }
+    catch (KeyValueParser.ParseError e) { return e.getMessage(); }
+  }
+
+  static Object parse_regex(String def)
+  {
+    try { return RegexKeyValueParser.parse(def); }
+    catch (RegexKeyValueParser.ParseError e) { return e.getMessage(); }
+  }
+
+  static void same_result(String def)
+  {
+    assertEquals(def, parse_regex(def), parse(def));
+  }
+}
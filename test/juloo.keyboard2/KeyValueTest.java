@@ -23,6 +23,26 @@ public class KeyValueTest
         KeyValue.keyeventKey("tab", KeyEvent.KEYCODE_TAB, KeyValue.FLAG_SMALLER_FONT));
   }
 
+  @Test
+  public void interned()
+  {
+    assertSame(KeyValue.SHIFT, KeyValue.getKeyByName("shift"));
+    assertSame(KeyValue.getKeyByName("ctrl"), KeyValue.getKeyByName("ctrl"));
+    assertSame(KeyValue.getSpecialKeyByName("tab"), KeyValue.getKeyByName("tab"));
+    assertSame(KeyValue.getKeyByName("Foo"), KeyValue.getKeyByName(":str:'Foo'"));
+    assertSame(KeyValue.getKeyByName("a"),
+        KeyValue.intern(KeyValue.makeCharKey('a')));
+    assertSame(
+        KeyValue.intern(KeyValue.makeMacro("Symbol", new KeyValue[] { str("Foo") }, 0)),
+        KeyValue.intern(str("Foo").withSymbol("Symbol")));
+    assertSame(ComposeKey.apply(ComposeKeyData.accent_aigu, 'e'),
+        ComposeKey.apply(ComposeKeyData.accent_aigu, 'e'));
+    Pointers.Modifiers mods =
+      Pointers.Modifiers.ofArray(new KeyValue[]{ KeyValue.SHIFT }, 1);
+    assertSame(KeyValue.getKeyByName("A"),
+        KeyModifier.modify(KeyValue.getKeyByName("a"), mods));
+  }
+
   @Test
   public void numpad_script()
   {
@@ -0,0 +1,96 @@
+package juloo.keyboard2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import juloo.keyboard2.Pointers.Modifiers;
+import org.junit.Test;
+import static juloo.keyboard2.TestUtils.*;
+import static org.junit.Assert.*;
+
+public class ModifiersTest
+{
+  public ModifiersTest() {}
+
+  @Test
+  public void has()
+  {
+    Modifiers m = Utils.mods("shift", "ctrl");
+    assertTrue(m.has(KeyValue.Modifier.SHIFT));
+    assertTrue(m.has(KeyValue.Modifier.CTRL));
+    assertFalse(m.has(KeyValue.Modifier.ALT));
+    assertFalse(Modifiers.EMPTY.has(KeyValue.Modifier.SHIFT));
+  }
+
+  @Test
+  public void evaluation_order()
+  {
+    // The last modifier in [KeyValue.Modifier] is applied first.
+    Modifiers m = Utils.mods("ctrl", "fn", "shift", "compose");
+    assertEquals(4, m.size());
+    assertEquals(KeyValue.Modifier.FN, m.get(0).getModifier());
+    assertEquals(KeyValue.Modifier.CTRL, m.get(1).getModifier());
+    assertEquals(KeyValue.Modifier.SHIFT, m.get(2).getModifier());
+    assertEquals(KeyValue.Kind.Compose_pending, m.get(3).getKind());
+  }
+
+  @Test
+  public void duplicates()
+  {
+    Modifiers m = Utils.mods("shift", "ctrl", "shift", "compose", "compose");
+    assertEquals(3, m.size());
+    assertSame(m, m.with_extra_mod(key("ctrl")));
+    assertSame(m, m.with_extra_mod(key("compose")));
+    assertEquals(4, m.with_extra_mod(key("alt")).size());
+  }
+
+  @Test
+  public void equals()
+  {
+    assertEquals(Utils.mods("shift", "ctrl"), Utils.mods("ctrl", "shift"));
+    assertEquals(Utils.mods("shift", "ctrl").hashCode(),
+        Utils.mods("ctrl", "shift").hashCode());
+    assertEquals(Utils.mods("shift", "a"), Utils.mods("a", "shift", "shift"));
+    assertEquals(Modifiers.EMPTY, Utils.mods());
+    assertNotEquals(Utils.mods("shift"), Utils.mods("shift", "ctrl"));
+    assertNotEquals(Utils.mods("shift", "a"), Utils.mods("shift", "b"));
+    assertEquals(Modifiers.EMPTY.with_extra_mod(key("shift")),
+        Utils.mods("shift"));
+  }
+
+  @Test
+  public void diff()
+  {
+    Modifiers m1 = Utils.mods("shift", "ctrl", "alt", "a");
+    Modifiers m2 = Utils.mods("ctrl", "meta");
+    assertEquals(Arrays.asList(key("a"), key("shift"), key("alt")),
+        Utils.diff(m1, m2));
+    assertEquals(Arrays.asList(key("meta")), Utils.diff(m2, m1));
+    assertEquals(Arrays.asList(), Utils.diff(m2, m2));
+    assertEquals(Arrays.asList(), Utils.diff(Modifiers.EMPTY, m1));
+    assertEquals(Arrays.asList(key("ctrl"), key("meta")),
+        Utils.diff(m2, Modifiers.EMPTY));
+  }
+
+  /** JUnit removes these functions from stacktraces. */
+  static class Utils
+  {
+    static Modifiers mods(String... names)
+    {
+      KeyValue[] ks = new KeyValue[names.length];
+      for (int i = 0; i < names.length; i++)
+        ks[i] = key(names[i]);
+      return Modifiers.ofArray(ks, ks.length);
+    }
+
+    static List<KeyValue> diff(Modifiers m1, Modifiers m2)
+    {
+      List<KeyValue> l = new ArrayList<KeyValue>();
+      Iterator<KeyValue> it = m1.diff(m2);
+      while (it.hasNext())
+        l.add(it.next());
+      return l;
+    }
+  }
+}
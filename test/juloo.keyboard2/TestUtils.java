@@ -1,7 +1,20 @@
 package juloo.keyboard2;
 
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import juloo.keyboard2.KeyModifier;
 import juloo.keyboard2.KeyValue;
+import juloo.keyboard2.suggestions.Suggestions;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
 
 /** Utils to make writing tests easier. */
 public final class TestUtils
@@ -38,4 +51,181 @@ public final class TestUtils
   {
     return KeyValue.makeStringKey(s, flags);
   }
+
+  /** The layouts in [srcs/layouts], sorted by name. */
+  public static List<File> layout_files()
+  {
+    File[] files = new File("srcs/layouts").listFiles(
+        (dir, name) -> name.endsWith(".xml"));
+    Arrays.sort(files);
+    return Arrays.asList(files);
+  }
+
+  /** Every layouts in [srcs/layouts], parsed once. */
+  public static List<KeyboardData> layouts() throws Exception
+  {
+    if (_layouts == null)
+    {
+      List<KeyboardData> layouts = new ArrayList<KeyboardData>();
+      for (File f : layout_files())
+        layouts.add(load_layout(f));
+      _layouts = layouts;
+    }
+    return _layouts;
+  }
+
+  static List<KeyboardData> _layouts = null;
+
+  /** Parse a layout from [srcs/layouts], [name] doesn't include the
+      extension. */
+  public static KeyboardData load_layout(String name) throws Exception
+  {
+    return load_layout(new File("srcs/layouts", name + ".xml"));
+  }
+
+  public static KeyboardData load_layout(File file) throws Exception
+  {
+    return KeyboardData.parse_keyboard(xml_parser(file));
+  }
+
+  /** A parser configured like [android.util.Xml.newPullParser]. */
+  public static XmlPullParser xml_parser(File file) throws Exception
+  {
+    XmlPullParser parser = new KXmlParser();
+    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    parser.setInput(new StringReader(new String(
+            Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+    return parser;
+  }
+
+  /** Lowercase words of the documentation, in order. */
+  public static List<String> doc_words() throws Exception
+  {
+    List<File> files = new ArrayList<File>();
+    files.add(new File("README.md"));
+    files.add(new File("CONTRIBUTING.md"));
+    File[] docs = new File("doc").listFiles();
+    Arrays.sort(docs);
+    files.addAll(Arrays.asList(docs));
+    List<String> words = new ArrayList<String>();
+    for (File f : files)
+    {
+      String src = new String(Files.readAllBytes(f.toPath()),
+          StandardCharsets.UTF_8);
+      for (String w : src.toLowerCase().split("[^\\p{L}']+"))
+        if (w.length() > 0)
+          words.add(w);
+    }
+    return words;
+  }
+
+  /** A dictionary of sorted words that counts the queries made to it. */
+  public static class Dict implements Suggestions.Dict
+  {
+    public final String[] words;
+    /** Number of occurrences of each word in the list given to the
+        constructor. */
+    public final int[] freqs;
+    public int queries = 0;
+
+    public Dict(List<String> ws)
+    {
+      TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+      for (String w : ws)
+      {
+        Integer c = counts.get(w);
+        counts.put(w, (c == null) ? 1 : c + 1);
+      }
+      words = counts.keySet().toArray(new String[0]);
+      freqs = new int[words.length];
+      for (int i = 0; i < words.length; i++)
+        freqs[i] = counts.get(words[i]);
+    }
+
+    public int find(String w)
+    {
+      queries++;
+      int i = Arrays.binarySearch(words, w);
+      return (i < 0) ? -1 : i;
+    }
+
+    public boolean has_prefix(String p)
+    {
+      queries++;
+      int i = first_with_prefix(p);
+      return i < words.length && words[i].startsWith(p);
+    }
+
+    public String word(int index)
+    {
+      return words[index];
+    }
+
+    public int[] suffixes(String p, int count)
+    {
+      queries++;
+      int i = first_with_prefix(p);
+      if (i < words.length && words[i].equals(p))
+        i++;
+      List<Integer> r = new ArrayList<Integer>();
+      for (; i < words.length && r.size() < count; i++)
+        if (words[i].startsWith(p))
+          r.add(i);
+        else
+          break;
+      return to_array(r);
+    }
+
+    /** Only supports [max_dist = 1]. The most frequent words come first,
+        like in a real dictionary. */
+    public int[] distance(String w, int max_dist, int count)
+    {
+      TreeSet<Integer> found = new TreeSet<Integer>();
+      String alphabet = "abcdefghijklmnopqrstuvwxyz'";
+      for (int i = 0; i <= w.length(); i++)
+      {
+        String a = w.substring(0, i);
+        if (i < w.length())
+          add_if_found(found, a + w.substring(i + 1));
+        for (char c : alphabet.toCharArray())
+        {
+          add_if_found(found, a + c + w.substring(i));
+          if (i < w.length() && c != w.charAt(i))
+            add_if_found(found, a + c + w.substring(i + 1));
+        }
+      }
+      List<Integer> r = new ArrayList<Integer>(found);
+      Collections.sort(r, (a, b) -> Integer.compare(freqs[b], freqs[a]));
+      return to_array(r.subList(0, Math.min(count, r.size())));
+    }
+
+    public List<String> words(int[] indexes)
+    {
+      List<String> l = new ArrayList<String>();
+      for (int i : indexes)
+        l.add(words[i]);
+      return l;
+    }
+
+    int first_with_prefix(String p)
+    {
+      int i = Arrays.binarySearch(words, p);
+      return (i < 0) ? -i - 1 : i;
+    }
+
+    void add_if_found(TreeSet<Integer> found, String w)
+    {
+      int i = find(w);
+      if (i >= 0)
+        found.add(i);
+    }
+
+    static int[] to_array(List<Integer> l)
+    {
+      int[] a = new int[l.size()];
+      for (int i = 0; i < a.length; i++)
+        a[i] = l.get(i);
+      return a;
+    }
+  }
 }
@@ -0,0 +1,40 @@
+package juloo.keyboard2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UtilsTest
+{
+  public UtilsTest() {}
+
+  @Test
+  public void read_file() throws Exception
+  {
+    for (int size : new int[]{ 0, 1, 128000, 128001, 1000000 })
+    {
+      byte[] data = random_bytes(size);
+      File f = temp_file(data);
+      assertArrayEquals(data, Utils.read_file(f));
+      f.delete();
+    }
+  }
+
+  static byte[] random_bytes(int size)
+  {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+
+  static File temp_file(byte[] data) throws Exception
+  {
+    File f = File.createTempFile("UtilsTest", ".dict");
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(data);
+    out.close();
+    return f;
+  }
+}
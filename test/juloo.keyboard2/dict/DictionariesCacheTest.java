@@ -0,0 +1,78 @@
+package juloo.keyboard2.dict;
+
+import juloo.keyboard2.dict.Dictionaries.Cache;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DictionariesCacheTest
+{
+  public DictionariesCacheTest() {}
+
+  @Test
+  public void lru_eviction()
+  {
+    Cache<String> c = new Cache<String>(100);
+    c.put("a", "A", 40);
+    c.put("b", "B", 40);
+    assertEquals("A", c.get("a").value); // [b] is now the least recently used
+    c.put("c", "C", 40);
+    assertNull(c.get("b"));
+    assertNotNull(c.get("a"));
+    assertNotNull(c.get("c"));
+    assertEquals(80, c.resident_bytes);
+    assertEquals(3, c.hits);
+    assertEquals(1, c.misses);
+  }
+
+  @Test
+  public void pinned()
+  {
+    Cache<String> c = new Cache<String>(100);
+    c.put("a", "A", 60);
+    c.pin("a");
+    c.put("b", "B", 60);
+    assertNotNull(c.get("a"));
+    assertNotNull(c.get("b")); // The last loaded is kept
+    c.put("c", "C", 30);
+    assertNotNull(c.get("a"));
+    assertNull(c.get("b"));
+    // Larger than the budget.
+    c.put("d", "D", 200);
+    c.pin("d");
+    assertNotNull(c.get("d"));
+    assertNull(c.get("a"));
+    assertEquals(200, c.resident_bytes);
+  }
+
+  @Test
+  public void trim()
+  {
+    Cache<String> c = new Cache<String>(100);
+    c.put("a", "A", 10);
+    c.put("b", null, 0);
+    c.put("c", "C", 10);
+    c.pin("a");
+    c.trim();
+    assertEquals(1, c.count());
+    assertEquals(10, c.resident_bytes);
+    assertNotNull(c.get("a"));
+    c.pin(null);
+    c.trim();
+    assertEquals(0, c.count());
+    assertEquals(0, c.resident_bytes);
+  }
+
+  @Test
+  public void replace_and_remove()
+  {
+    Cache<String> c = new Cache<String>(100);
+    c.put("a", "A", 10);
+    c.put("a", "A2", 20);
+    assertEquals(20, c.resident_bytes);
+    assertEquals("A2", c.get("a").value);
+    c.remove("a");
+    c.remove("a");
+    assertEquals(0, c.resident_bytes);
+    assertEquals(0, c.count());
+  }
+}
@@ -0,0 +1,158 @@
+package juloo.keyboard2.suggestions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import juloo.keyboard2.TestUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PrefixCacheTest
+{
+  public PrefixCacheTest() {}
+
+  @Test
+  public void typing()
+  {
+    PrefixCache<String> c = new PrefixCache<String>();
+    assertNull(c.get("he"));
+    assertNull(c.longest_prefix());
+    c.push("he", "HE");
+    assertNull(c.get("hel"));
+    assertEquals("HE", c.longest_prefix());
+    c.push("hel", "HEL");
+    assertNull(c.get("help"));
+    c.push("help", "HELP");
+    // Backspace
+    assertEquals("HEL", c.get("hel"));
+    assertEquals(2, c.size());
+    assertNull(c.get("hell"));
+    assertEquals("HEL", c.longest_prefix());
+    c.push("hell", "HELL");
+    // Cursor moved to an other word
+    assertNull(c.get("word"));
+    assertNull(c.longest_prefix());
+    assertEquals(0, c.size());
+  }
+
+  @Test
+  public void max_depth()
+  {
+    PrefixCache<String> c = new PrefixCache<String>();
+    String w = "";
+    for (int i = 0; i < 40; i++)
+    {
+      w += "a";
+      if (c.get(w) == null)
+        c.push(w, w);
+    }
+    assertEquals(32, c.size());
+    assertEquals(w.substring(0, 20), c.get(w.substring(0, 20)));
+  }
+
+  @Test
+  public void search_queries()
+  {
+    TestUtils.Dict dict = new TestUtils.Dict(Arrays.asList(
+          "hello", "help", "world"));
+    Suggestions.Worker worker = new Suggestions.Worker();
+    // A lookup and a search for suffixes.
+    Suggestions.Search he = search(worker, dict, "he", 2);
+    assertEquals(Arrays.asList("hello", "help"), dict.words(he.suffixes));
+    search(worker, dict, "hel", 2);
+    // Backspace
+    assertSame(he, search(worker, dict, "he", 0));
+    // No word starts with "hez", the longer words are not searched.
+    assertTrue(search(worker, dict, "hez", 2).no_prefix);
+    assertTrue(search(worker, dict, "hezz", 0).no_prefix);
+    assertTrue(search(worker, dict, "hez", 0).no_prefix);
+    // Cursor moved to an other word
+    assertEquals("world", dict.word(search(worker, dict, "wo", 2).suffixes[0]));
+    assertEquals("world", search(worker, dict, "world", 2).found);
+    // The dictionary changed
+    TestUtils.Dict dict2 = new TestUtils.Dict(Arrays.asList("wood"));
+    assertEquals(Arrays.asList("wood"),
+        dict2.words(search(worker, dict2, "wo", 2).suffixes));
+  }
+
+  @Test
+  /* Type the words of the documentation, with typos corrected with
+     backspaces, and count the dictionary queries made for each keystroke.
+     The dictionary is made of the same words. */
+  public void replay_corpus() throws Exception
+  {
+    List<String> words = TestUtils.doc_words();
+    TestUtils.Dict dict = new TestUtils.Dict(words);
+    Suggestions.Worker worker = new Suggestions.Worker();
+    Random rand = new Random(0);
+    int keystrokes = 0;
+    int queries = 0;
+    int uncached_queries = 0;
+    for (String word : words)
+    {
+      String prev = "";
+      for (String w : keystrokes(word, rand))
+      {
+        keystrokes++;
+        boolean backspace = prev.startsWith(w);
+        prev = w;
+        if (w.length() < 2) // Like [Suggestions]
+          continue;
+        int q = dict.queries;
+        Suggestions.Search s = worker.search(w, dict, null, null);
+        if (backspace)
+          assertEquals(w, q, dict.queries);
+        queries += dict.queries - q;
+        q = dict.queries;
+        Suggestions.Search uncached =
+          new Suggestions.Worker().search(w, dict, null, null);
+        uncached_queries += dict.queries - q;
+        assertEquals(w, uncached.found, s.found);
+        assertArrayEquals(uncached.suffixes, s.suffixes);
+      }
+    }
+    assertTrue(keystrokes > 20000);
+    // A search without the cache makes 2 queries for every keystrokes.
+    assertTrue(queries * 100 / keystrokes < 150);
+    assertTrue(queries * 100 / uncached_queries < 85);
+  }
+
+  static Suggestions.Search search(Suggestions.Worker worker,
+      TestUtils.Dict dict, String word, int expected_queries)
+  {
+    int q = dict.queries;
+    Suggestions.Search s = worker.search(word, dict, null, null);
+    assertEquals(word, expected_queries, dict.queries - q);
+    return s;
+  }
+
+  /** The successive states of the typed word while typing [word]. A typo is
+      made every 10 characters, it is noticed after up to 2 more characters
+      and corrected with backspaces. */
+  static List<String> keystrokes(String word, Random rand)
+  {
+    List<String> steps = new ArrayList<String>();
+    StringBuilder typed = new StringBuilder();
+    for (int i = 0; i < word.length(); i++)
+    {
+      if (rand.nextInt(10) == 0)
+      {
+        StringBuilder t = new StringBuilder(typed);
+        t.append((char)('a' + rand.nextInt(26)));
+        steps.add(t.toString());
+        int more = Math.min(rand.nextInt(3), word.length() - i);
+        for (int j = 0; j < more; j++)
+          steps.add(t.append(word.charAt(i + j)).toString());
+        while (t.length() > typed.length())
+        {
+          t.setLength(t.length() - 1);
+          steps.add(t.toString());
+        }
+      }
+      typed.append(word.charAt(i));
+      steps.add(typed.toString());
+    }
+    return steps;
+  }
+}
@@ -0,0 +1,166 @@
+package juloo.keyboard2.suggestions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import juloo.keyboard2.KeyboardData;
+import juloo.keyboard2.TestUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProximityCorrectionsTest
+{
+  public ProximityCorrectionsTest() {}
+
+  @Test
+  public void neighbors() throws Exception
+  {
+    KeyboardData kb = TestUtils.load_layout("latn_qwerty_us");
+    KeyProximity p = KeyProximity.of(kb);
+    char[] q = p.neighbors('q');
+    assertEquals('w', q[0]);
+    assertEquals(1.f, p.distances('q')[0], 0.01f);
+    assertEquals(-1, new String(q).indexOf('p'));
+    char[] g = p.neighbors('g').clone();
+    Arrays.sort(g);
+    assertEquals("bcfhtvy", new String(g));
+    assertEquals(0, p.neighbors('1').length);
+    assertSame(p, KeyProximity.of(kb));
+  }
+
+  @Test
+  public void corrections() throws Exception
+  {
+    KeyProximity p = qwerty();
+    TestUtils.Dict d = new TestUtils.Dict(Arrays.asList(
+          "hello", "jello", "hells", "help", "yellow", "cello"));
+    // 'h' and 'j' are adjacent, 'c' is far away.
+    assertEquals(Arrays.asList("hello", "jello"), d.words(
+          ProximityCorrections.search(p, d, "hrllo", 3)));
+    assertEquals(Arrays.asList("hello"), d.words(
+          ProximityCorrections.search(p, d, "hrllo", 1)));
+    assertEquals(Arrays.asList("help"), d.words(
+          ProximityCorrections.search(p, d, "hrlp", 3)));
+    // Not a correction of itself.
+    assertEquals(Arrays.asList("jello"), d.words(
+          ProximityCorrections.search(p, d, "hello", 3)));
+    assertEquals(0, ProximityCorrections.search(p, d, "", 3).length);
+    // Missing and extra characters.
+    assertEquals(Arrays.asList("help", "hello"), d.words(
+          ProximityCorrections.search(p, d, "helo", 3)));
+    assertEquals(Arrays.asList("help", "hello", "hells"), d.words(
+          ProximityCorrections.search(p, d, "hell", 3)));
+    assertEquals(Arrays.asList("hello"), d.words(
+          ProximityCorrections.search(p, d, "hwello", 3)));
+    assertEquals(Arrays.asList("yellow"), d.words(
+          ProximityCorrections.search(p, d, "yelloe", 3)));
+    // Cancelled before the first query.
+    int q = d.queries;
+    assertEquals(0, ProximityCorrections.search(p, d, "hrllo", 3,
+          () -> true).length);
+    assertEquals(q, d.queries);
+  }
+
+  @Test
+  /* Type the words of the documentation with a fat finger error: a character
+     replaced by the character of an adjacent key, a missing character or an
+     extra character from an adjacent key. The corrections are compared with
+     the edit distance search, whose results are ranked by frequency. */
+  public void replay_fat_finger() throws Exception
+  {
+    KeyProximity p = qwerty();
+    List<String> corpus = TestUtils.doc_words();
+    TestUtils.Dict d = new TestUtils.Dict(corpus);
+    Random rand = new Random(0);
+    int n = 0;
+    // Top 1, top 3 and number of queries.
+    int[] dist = new int[3], prox = new int[3];
+    int[] noise_count = new int[3], noise_found = new int[3];
+    for (String w : corpus)
+    {
+      if (w.length() < 3)
+        continue;
+      int noise = rand.nextInt(3);
+      String t = fat_finger(p, w, noise, rand);
+      // Corrections are not searched for short words, like in [Suggestions].
+      if (t == null || t.length() < 3 || d.find(t) >= 0)
+        continue;
+      n++;
+      noise_count[noise]++;
+      int e = d.find(w);
+      int q = d.queries;
+      rank(dist, d.distance(t, 1, 3), e);
+      dist[2] += d.queries - q;
+      q = d.queries;
+      int[] r = corrections(p, d, t);
+      prox[2] += d.queries - q;
+      rank(prox, r, e);
+      if (contains(r, e))
+        noise_found[noise]++;
+    }
+    assertTrue(n > 3000);
+    // At least as good as the edit distance search, with fewer queries.
+    assertTrue(prox[0] >= dist[0]);
+    assertTrue(prox[1] >= dist[1]);
+    assertTrue(prox[2] * 100 / dist[2] < 70);
+    // Every kinds of errors are corrected.
+    for (int k = 0; k < 3; k++)
+      assertTrue(noise_found[k] * 3 > noise_count[k] * 2);
+  }
+
+  static KeyProximity qwerty() throws Exception
+  {
+    return KeyProximity.of(TestUtils.load_layout("latn_qwerty_us"));
+  }
+
+  /** Like [Suggestions]. The edit distance search is used when no
+      correction is found. */
+  static int[] corrections(KeyProximity p, TestUtils.Dict d, String w)
+  {
+    int[] r = ProximityCorrections.search(p, d, w, 3);
+    return (r.length > 0) ? r : d.distance(w, 1, 3);
+  }
+
+  /** [noise] is [0] for a substitution, [1] for a deletion and [2] for an
+      insertion. [null] if the error can't be made. */
+  static String fat_finger(KeyProximity p, String w, int noise, Random rand)
+  {
+    int i = rand.nextInt(w.length());
+    char[] ns = p.neighbors(w.charAt(i));
+    switch (noise)
+    {
+      case 0:
+        if (ns.length == 0)
+          return null;
+        return w.substring(0, i) + ns[rand.nextInt(ns.length)]
+          + w.substring(i + 1);
+      case 1:
+        return w.substring(0, i) + w.substring(i + 1);
+      default:
+        if (ns.length == 0)
+          return null;
+        // The neighboring key is pressed before or after the intended key.
+        int j = i + rand.nextInt(2);
+        return w.substring(0, j) + ns[rand.nextInt(ns.length)]
+          + w.substring(j);
+    }
+  }
+
+  /** Count the expected word [e] in the first result and in all of [r]. */
+  static void rank(int[] stats, int[] r, int e)
+  {
+    if (r.length > 0 && r[0] == e)
+      stats[0]++;
+    if (contains(r, e))
+      stats[1]++;
+  }
+
+  static boolean contains(int[] r, int e)
+  {
+    for (int x : r)
+      if (x == e)
+        return true;
+    return false;
+  }
+}